@@ -0,0 +1,143 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+// Envoi groupé de plusieurs fichiers (action "msend").
+//
+// Le client annonce d'abord le nom et la taille de chaque fichier, puis envoie leurs octets
+// à la suite. Les petits fichiers (moins de packLimit octets) qui se suivent forment un seul
+// flux, découpé en morceaux comme un gros fichier : des milliers de petits fichiers tiennent
+// ainsi dans quelques morceaux, donc quelques écritures sur les esclaves, et chacun est
+// décrit dans le catalogue par sa position dans ces morceaux communs. Un fichier plus gros
+// forme son propre flux, découpé comme s'il était envoyé seul pour partager ses morceaux
+// avec ses autres copies.
+//
+// Chaque flux est reçu comme un envoi simple, dans un Segment ; les fichiers n'apparaissent
+// dans le catalogue qu'une fois tous les flux reçus, en un seul enregistrement du journal.
+class BatchUpload {
+    // Nombre maximal de fichiers d'un envoi, d'un téléchargement ou d'une suppression groupés
+    static final int MAX_FILES = 10_000;
+
+    final List<Segment> segments = new ArrayList<>();
+    private final int fileCount;
+
+    BatchUpload(List<String> names, List<Long> sizes, long packLimit) {
+        fileCount = names.size();
+        int first = 0;
+        while (first < names.size()) {
+            int end = first + 1;
+            if (sizes.get(first) < packLimit) {
+                while (end < names.size() && sizes.get(end) < packLimit) {
+                    end++;
+                }
+            }
+            segments.add(new Segment(names.subList(first, end), sizes.subList(first, end)));
+            first = end;
+        }
+    }
+
+    // Lit la table d'un envoi groupé : nombre de fichiers (int), puis nom (UTF) et taille
+    // (long) de chacun
+    static BatchUpload readFrom(DataInputStream in, long packLimit) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FILES) {
+            throw new IOException("Envoi groupé de " + count + " fichiers refusé (" + MAX_FILES + " au plus).");
+        }
+        List<String> names = new ArrayList<>(count);
+        List<Long> sizes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+            long size = in.readLong();
+            if (size < 0) {
+                throw new IOException("Taille invalide pour " + names.get(i) + " : " + size);
+            }
+            sizes.add(size);
+        }
+        return new BatchUpload(names, sizes, packLimit);
+    }
+
+    int fileCount() {
+        return fileCount;
+    }
+
+    // Entrées du catalogue des fichiers, une fois tous les flux reçus
+    List<MetadataCatalog.FileEntry> entries(long modified) {
+        List<MetadataCatalog.FileEntry> entries = new ArrayList<>(fileCount);
+        for (Segment segment : segments) {
+            segment.addEntries(entries, modified);
+        }
+        return entries;
+    }
+
+    // Flux d'un ou plusieurs fichiers consécutifs de l'envoi ; la somme de contrôle de
+    // chaque fichier est calculée au passage des octets
+    static class Segment extends UploadSession {
+        private final List<String> names;
+        // Fin de chaque fichier dans le flux
+        private final long[] ends;
+        private final CRC32C[] checksums;
+        private int current;
+
+        Segment(List<String> names, List<Long> sizes) {
+            super(null, names.get(0), total(sizes));
+            this.names = new ArrayList<>(names);
+            ends = new long[names.size()];
+            checksums = new CRC32C[names.size()];
+            long end = 0;
+            for (int i = 0; i < ends.length; i++) {
+                end += sizes.get(i);
+                ends[i] = end;
+                checksums[i] = new CRC32C();
+            }
+        }
+
+        private static long total(List<Long> sizes) {
+            long total = 0;
+            for (long size : sizes) {
+                total += size;
+            }
+            return total;
+        }
+
+        @Override
+        void append(byte[] buffer, int length) {
+            long position = received;
+            int offset = 0;
+            while (offset < length) {
+                while (ends[current] <= position) {
+                    current++;
+                }
+                int count = (int) Math.min(length - offset, ends[current] - position);
+                checksums[current].update(buffer, offset, count);
+                offset += count;
+                position += count;
+            }
+            super.append(buffer, length);
+        }
+
+        // Chaque fichier reçoit les morceaux qui recouvrent ses octets et sa position dans
+        // le premier d'entre eux
+        private void addEntries(List<MetadataCatalog.FileEntry> entries, long modified) {
+            int first = 0;
+            long firstStart = 0;
+            long start = 0;
+            for (int i = 0; i < names.size(); i++) {
+                long end = ends[i];
+                // Premier morceau qui contient des octets du fichier
+                while (first < chunks.size() && firstStart + chunks.get(first).length <= start) {
+                    firstStart += chunks.get(first).length;
+                    first++;
+                }
+                List<MetadataCatalog.ChunkRef> fileChunks = new ArrayList<>();
+                long chunkStart = firstStart;
+                for (int c = first; c < chunks.size() && chunkStart < end; c++) {
+                    fileChunks.add(chunks.get(c));
+                    chunkStart += chunks.get(c).length;
+                }
+                entries.add(new MetadataCatalog.FileEntry(names.get(i), end - start, checksums[i].getValue(),
+                        modified, fileChunks.isEmpty() ? 0 : start - firstStart, fileChunks));
+                start = end;
+            }
+        }
+    }
+}
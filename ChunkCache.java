@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache des morceaux les plus lus, tenu par le serveur principal hors du tas Java.
+//
+// Chaque morceau est copié dans un tampon direct ; le total est borné par un budget en
+// octets et les morceaux les moins récemment lus sont évincés en premier. Lorsque le cache
+// est plein, un nouveau morceau n'y entre que s'il a été demandé plus souvent que chacun de
+// ceux qu'il évincerait (admission TinyLFU, sur des fréquences approximatives) : la lecture
+// d'un gros fichier une seule fois ne chasse pas les morceaux populaires. Les morceaux
+// étant désignés par l'empreinte de leur contenu, une entrée ne devient jamais fausse :
+// elle est seulement retirée quand le morceau est supprimé des esclaves.
+//
+// Le cache est découpé en segments selon la clé, chacun avec son verrou, son budget, son
+// ordre d'accès et ses fréquences : les lectures de morceaux différents ne s'attendent pas.
+class ChunkCache {
+    // Au plus MAX_SEGMENTS segments, chacun assez grand pour SEGMENT_CHUNKS morceaux entiers
+    private static final int MAX_SEGMENTS = 16;
+    private static final int SEGMENT_CHUNKS = 8;
+    // Compteurs de fréquence, répartis entre les segments : 4 compteurs par morceau,
+    // plafonnés à 15, divisés par deux après dix accès par compteur pour oublier les
+    // anciennes popularités
+    private static final int SKETCH_WIDTH = 1 << 14;
+
+    private final long capacity;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    ChunkCache(long capacity, int maxChunkSize) {
+        this.capacity = capacity;
+        int count = 1;
+        while (count < MAX_SEGMENTS && capacity / (2L * count) >= (long) SEGMENT_CHUNKS * maxChunkSize) {
+            count *= 2;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count, SKETCH_WIDTH / count);
+        }
+    }
+
+    // Copie le morceau dans target et renvoie sa taille, ou -1 s'il n'est pas en cache
+    int get(String key, byte[] target) {
+        Segment segment = segmentOf(key);
+        ByteBuffer cached;
+        synchronized (segment) {
+            segment.recordAccess(key);
+            cached = segment.entries.get(key);
+        }
+        if (cached == null) {
+            misses.increment();
+            return -1;
+        }
+        hits.increment();
+        // La copie se fait hors du verrou ; une éviction entre-temps ne libère pas le tampon
+        ByteBuffer view = cached.duplicate();
+        int length = view.remaining();
+        view.get(target, 0, length);
+        return length;
+    }
+
+    // Garde une copie d'un morceau lu, en évinçant les moins récemment lus si nécessaire
+    void put(String key, byte[] source, int length) {
+        Segment segment = segmentOf(key);
+        if (length > segment.capacity) {
+            return;
+        }
+        synchronized (segment) {
+            if (segment.entries.containsKey(key)) {
+                return;
+            }
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(length);
+        copy.put(source, 0, length).flip();
+        synchronized (segment) {
+            if (segment.entries.containsKey(key)) {
+                return;
+            }
+            // Morceaux les moins récemment lus qu'il faudrait évincer pour lui faire de la place
+            int frequency = segment.frequency(key);
+            int victims = 0;
+            long freed = 0;
+            for (Map.Entry<String, ByteBuffer> eldest : segment.entries.entrySet()) {
+                if (segment.size - freed + length <= segment.capacity) {
+                    break;
+                }
+                if (segment.frequency(eldest.getKey()) >= frequency) {
+                    rejections.increment();
+                    return;
+                }
+                freed += eldest.getValue().capacity();
+                victims++;
+            }
+            Iterator<ByteBuffer> eldest = segment.entries.values().iterator();
+            for (int i = 0; i < victims; i++) {
+                segment.size -= eldest.next().capacity();
+                eldest.remove();
+                evictions.increment();
+            }
+            segment.entries.put(key, copy);
+            segment.size += length;
+        }
+    }
+
+    void invalidate(String key) {
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            ByteBuffer removed = segment.entries.remove(key);
+            if (removed != null) {
+                segment.size -= removed.capacity();
+            }
+        }
+    }
+
+    // Compteurs pour dimensionner le cache (action "stats")
+    Map<String, Long> stats() {
+        long size = 0;
+        long entries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+                entries += segment.entries.size();
+            }
+        }
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("cache.capacity", capacity);
+        stats.put("cache.bytes", size);
+        stats.put("cache.entries", entries);
+        stats.put("cache.segments", (long) segments.length);
+        stats.put("cache.hits", hitCount);
+        stats.put("cache.misses", missCount);
+        stats.put("cache.evictions", evictions.sum());
+        stats.put("cache.rejections", rejections.sum());
+        // Taux de succès en pour dix mille
+        stats.put("cache.hit_rate_bp", hitCount + missCount == 0 ? 0 : hitCount * 10_000 / (hitCount + missCount));
+        return stats;
+    }
+
+    private Segment segmentOf(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    // Partie du cache, protégée par son propre moniteur
+    private static final class Segment {
+        private final long capacity;
+        // Ordre d'accès : le premier élément est le moins récemment lu
+        private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+        private final byte[] sketch;
+        private int sampled;
+
+        Segment(long capacity, int sketchWidth) {
+            this.capacity = capacity;
+            this.sketch = new byte[sketchWidth];
+        }
+
+        private void recordAccess(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                if (sketch[index] < 15) {
+                    sketch[index]++;
+                }
+            }
+            if (++sampled >= 10 * sketch.length) {
+                for (int i = 0; i < sketch.length; i++) {
+                    sketch[i] >>= 1;
+                }
+                sampled /= 2;
+            }
+        }
+
+        private int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, sketch[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * (0x9E3779B1 + 2 * row);
+            h ^= h >>> 16;
+            return h & (sketch.length - 1);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+// Compression des morceaux entre le serveur principal et les esclaves.
+//
+// Le serveur principal (ou le client, en transfert direct) compresse chaque morceau avant
+// de l'envoyer ; l'esclave le stocke compressé avec l'indication de son codec et le renvoie
+// tel quel, sans le décompresser. Un morceau qui ne gagne pas au moins un huitième de sa
+// taille (données déjà compressées, images, archives...) est envoyé brut : la compression
+// est abandonnée dès que la sortie atteint cette limite, sans aller au bout du morceau.
+//
+// Les octets transmis sont accompagnés de leur CRC32C, vérifié par l'esclave à la réception
+// puis par celui qui le lit, au fil des octets reçus.
+final class ChunkCodec {
+    private static final AtomicLong CHUNKS = new AtomicLong();
+    private static final AtomicLong COMPRESSED_CHUNKS = new AtomicLong();
+    private static final AtomicLong RAW_BYTES = new AtomicLong();
+    private static final AtomicLong STORED_BYTES = new AtomicLong();
+
+    private ChunkCodec() {
+    }
+
+    // Compresse length octets de source dans target ; renvoie la taille compressée,
+    // ou -1 si le morceau ne se compresse pas assez et doit être envoyé brut
+    static int compress(byte[] source, int length, byte[] target) {
+        int limit = Math.min(target.length, length - length / 8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(source, 0, length);
+            deflater.finish();
+            int written = 0;
+            while (!deflater.finished() && written < limit) {
+                written += deflater.deflate(target, written, limit - written);
+            }
+            return deflater.finished() ? written : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Empreinte SHA-256 du contenu d'un morceau, en hexadécimal : c'est son nom sur les esclaves
+    static String fingerprint(byte[] buffer, int length) {
+        MessageDigest digest = sha256();
+        digest.update(buffer, 0, length);
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder key = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    // Une clé de morceau reçue d'un client est-elle bien une empreinte ?
+    static boolean isKey(String key) {
+        if (key.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (Character.digit(key.charAt(i), 16) < 0 || Character.isUpperCase(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // CRC32C des octets transmis d'un morceau (calculé par le processeur lorsqu'il le permet)
+    static int checksum(byte[] payload, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // Lit un morceau de size octets codé avec codec, vérifie son CRC32C et le décode dans
+    // target ; renvoie sa taille une fois décodé
+    static int read(byte codec, int checksum, long size, DataInputStream in, byte[] target) throws IOException {
+        CRC32C crc = new CRC32C();
+        if (codec == SlaveProtocol.CODEC_RAW) {
+            if (size > target.length) {
+                throw new IOException("morceau plus grand que " + target.length + " octets");
+            }
+            in.readFully(target, 0, (int) size);
+            crc.update(target, 0, (int) size);
+            verify(crc, checksum);
+            return (int) size;
+        }
+        if (codec != SlaveProtocol.CODEC_DEFLATE) {
+            throw new IOException("codec inconnu : " + codec);
+        }
+
+        // Décompression au fil de la lecture : seul un petit tampon reçoit les octets compressés
+        byte[] input = new byte[(int) Math.min(size, 64 * 1024)];
+        Inflater inflater = new Inflater();
+        try {
+            long remaining = size;
+            int decoded = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0) {
+                        throw new CorruptChunkException("morceau compressé tronqué");
+                    }
+                    int count = (int) Math.min(input.length, remaining);
+                    in.readFully(input, 0, count);
+                    crc.update(input, 0, count);
+                    remaining -= count;
+                    inflater.setInput(input, 0, count);
+                }
+                if (decoded == target.length && !inflater.needsInput()) {
+                    throw new IOException("morceau plus grand que " + target.length + " octets");
+                }
+                decoded += inflater.inflate(target, decoded, target.length - decoded);
+            }
+            // Octets éventuels au-delà de la fin du flux compressé : les consommer pour
+            // rester synchronisé avec la connexion
+            while (remaining > 0) {
+                int count = (int) Math.min(input.length, remaining);
+                in.readFully(input, 0, count);
+                crc.update(input, 0, count);
+                remaining -= count;
+            }
+            verify(crc, checksum);
+            return decoded;
+        } catch (DataFormatException e) {
+            throw new CorruptChunkException("morceau compressé illisible : " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Taille une fois décodé d'un morceau de size octets codé avec codec, sans le garder :
+    // un morceau compressé est décompressé au fil de la lecture dans un petit tampon
+    static long decodedSize(byte codec, long size, InputStream in) throws IOException {
+        if (codec == SlaveProtocol.CODEC_RAW) {
+            return size;
+        }
+        if (codec != SlaveProtocol.CODEC_DEFLATE) {
+            throw new IOException("codec inconnu : " + codec);
+        }
+        byte[] input = new byte[(int) Math.min(size, 64 * 1024)];
+        byte[] output = new byte[64 * 1024];
+        Inflater inflater = new Inflater();
+        try {
+            long remaining = size;
+            long decoded = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0) {
+                        throw new CorruptChunkException("morceau compressé tronqué");
+                    }
+                    int count = in.readNBytes(input, 0, (int) Math.min(input.length, remaining));
+                    if (count == 0) {
+                        throw new EOFException("morceau incomplet");
+                    }
+                    remaining -= count;
+                    inflater.setInput(input, 0, count);
+                }
+                int count = inflater.inflate(output);
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new CorruptChunkException("morceau compressé illisible");
+                }
+                decoded += count;
+            }
+            return decoded;
+        } catch (DataFormatException e) {
+            throw new CorruptChunkException("morceau compressé illisible : " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void verify(CRC32C crc, int checksum) throws CorruptChunkException {
+        if ((int) crc.getValue() != checksum) {
+            throw new CorruptChunkException("CRC32C incorrect, morceau altéré");
+        }
+    }
+
+    // Compte un morceau envoyé aux esclaves : sa taille d'origine et sa taille transmise
+    static void record(int rawLength, int storedLength) {
+        CHUNKS.incrementAndGet();
+        if (storedLength < rawLength) {
+            COMPRESSED_CHUNKS.incrementAndGet();
+        }
+        RAW_BYTES.addAndGet(rawLength);
+        STORED_BYTES.addAndGet(storedLength);
+    }
+
+    // Compteurs pour l'action "stats"
+    static Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("compression.chunks", CHUNKS.get());
+        stats.put("compression.compressed_chunks", COMPRESSED_CHUNKS.get());
+        stats.put("compression.raw_bytes", RAW_BYTES.get());
+        stats.put("compression.stored_bytes", STORED_BYTES.get());
+        return stats;
+    }
+
+    // Empreinte du contenu décodé d'un morceau, calculée au fil des octets reçus dans son
+    // codec : l'esclave vérifie ainsi qu'un morceau qu'on lui envoie correspond à sa clé,
+    // avant de l'enregistrer sous ce nom. end() libère le décompresseur.
+    static final class Fingerprint {
+        private final MessageDigest digest = sha256();
+        // null pour un morceau brut
+        private final Inflater inflater;
+        private final byte[] output;
+        private boolean malformed;
+
+        Fingerprint(byte codec) {
+            inflater = codec == SlaveProtocol.CODEC_DEFLATE ? new Inflater() : null;
+            output = inflater != null ? new byte[64 * 1024] : null;
+            malformed = codec != SlaveProtocol.CODEC_RAW && codec != SlaveProtocol.CODEC_DEFLATE;
+        }
+
+        void update(ByteBuffer bytes) {
+            if (malformed) {
+                return;
+            }
+            if (inflater == null) {
+                digest.update(bytes);
+                return;
+            }
+            inflater.setInput(bytes);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int count = inflater.inflate(output);
+                    if (count == 0 && inflater.needsDictionary()) {
+                        malformed = true;
+                        return;
+                    }
+                    digest.update(output, 0, count);
+                }
+            } catch (DataFormatException e) {
+                malformed = true;
+            }
+        }
+
+        // Le contenu reçu, décodé, a-t-il pour empreinte key ?
+        boolean matches(String key) {
+            if (malformed || (inflater != null && !inflater.finished())) {
+                return false;
+            }
+            return hex(digest.digest()).equals(key);
+        }
+
+        void end() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    // Morceau reçu dont les octets ne correspondent plus à ceux enregistrés
+    static class CorruptChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptChunkException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.util.*;
+
+// Écriture, lecture et description d'un morceau sur les esclaves (opérations OP_PUT, OP_GET
+// et OP_STAT), communes au serveur principal et au client en transfert direct.
+final class ChunkTransfers {
+    private ChunkTransfers() {
+    }
+
+    // Envoie les octets d'un morceau, codés avec codec, à la première réplique joignable, qui
+    // les retransmet aux suivantes en chaîne ; renvoie les adresses des répliques qui les
+    // ont enregistrés. Une réplique injoignable en tête de chaîne est sautée.
+    static List<String> put(List<SlavePool> replicas, String key, byte codec, byte[] payload, int payloadLength) throws IOException {
+        int checksum = ChunkCodec.checksum(payload, payloadLength);
+        List<SlavePool> chain = new ArrayList<>(replicas);
+        IOException failure = null;
+        while (!chain.isEmpty()) {
+            SlavePool head = chain.get(0);
+            List<SlavePool> forwards = new ArrayList<>(chain.subList(1, chain.size()));
+            byte[] statuses;
+            try {
+                statuses = head.execute("put", connection -> {
+                    int requestId = connection.request(SlaveProtocol.OP_PUT);
+                    connection.out.writeUTF(key);
+                    connection.out.writeByte(codec);
+                    connection.out.writeInt(checksum);
+                    connection.out.writeLong(payloadLength);
+                    connection.out.writeInt(forwards.size());
+                    for (SlavePool forward : forwards) {
+                        connection.out.writeUTF(forward.getAddress());
+                    }
+                    connection.out.write(payload, 0, payloadLength);
+
+                    byte status = connection.awaitResponse(requestId);
+                    int forwarded = connection.in.readInt();
+                    byte[] result = new byte[1 + forwarded];
+                    result[0] = status;
+                    connection.in.readFully(result, 1, forwarded);
+                    return result;
+                });
+            } catch (IOException e) {
+                System.err.println("Esclave " + head.getAddress() + " injoignable pour " + key + ": " + e.getMessage());
+                failure = e;
+                chain.remove(0);
+                continue;
+            }
+
+            List<String> stored = new ArrayList<>();
+            for (int i = 0; i < chain.size() && i < statuses.length; i++) {
+                if (statuses[i] == SlaveProtocol.STATUS_OK) {
+                    stored.add(chain.get(i).getAddress());
+                }
+            }
+            if (stored.isEmpty()) {
+                throw new IOException("aucune réplique n'a pu enregistrer le morceau");
+            }
+            if (stored.size() < replicas.size()) {
+                System.err.println("Morceau " + key + " enregistré sur " + stored.size()
+                        + " répliques au lieu de " + replicas.size());
+            }
+            Metrics.add("rpc." + head.getAddress() + ".bytes_out", payloadLength);
+            return stored;
+        }
+        throw failure;
+    }
+
+    // Lit la réplique d'un esclave dans target, en vérifiant son CRC32C à la réception ;
+    // renvoie la taille du morceau décodé
+    static int get(SlavePool slave, String key, byte[] target) throws IOException {
+        try {
+            return slave.execute("get", connection -> {
+                int requestId = connection.request(SlaveProtocol.OP_GET);
+                connection.out.writeUTF(key);
+                if (connection.awaitResponse(requestId) != SlaveProtocol.STATUS_OK) {
+                    throw new FileNotFoundException(key + " absente");
+                }
+                byte codec = connection.in.readByte();
+                int checksum = connection.in.readInt();
+                long partSize = connection.in.readLong();
+                Metrics.add("rpc." + slave.getAddress() + ".bytes_in", partSize);
+                return ChunkCodec.read(codec, checksum, partSize, connection.in, target);
+            });
+        } catch (ChunkCodec.CorruptChunkException e) {
+            throw new ChunkCodec.CorruptChunkException(slave.getAddress() + " : " + key + " : " + e.getMessage());
+        } catch (IOException e) {
+            throw new IOException(slave.getAddress() + " : " + key + " : " + e.getMessage(), e);
+        }
+    }
+
+    // Taille une fois décodée d'une partie enregistrée sur un esclave, sans la transférer ;
+    // FileNotFoundException si l'esclave ne l'a pas
+    static long stat(SlavePool slave, String name) throws IOException {
+        try {
+            return slave.execute("stat", connection -> {
+                int requestId = connection.request(SlaveProtocol.OP_STAT);
+                connection.out.writeUTF(name);
+                byte status = connection.awaitResponse(requestId);
+                if (status == SlaveProtocol.STATUS_NOT_FOUND) {
+                    throw new FileNotFoundException(name + " absente");
+                } else if (status != SlaveProtocol.STATUS_OK) {
+                    throw new IOException(name + " illisible");
+                }
+                connection.in.readByte();
+                connection.in.readInt();
+                connection.in.readLong();
+                return connection.in.readLong();
+            });
+        } catch (IOException e) {
+            throw new IOException(slave.getAddress() + " : " + e.getMessage(), e);
+        }
+    }
+}
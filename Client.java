@@ -1,10 +1,44 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 public class Client {
     private static String SERVER_ADDRESS;
     private static int SERVER_PORT;
+    // Nombre de tentatives d'un transfert interrompu avant d'abandonner
+    private static final int MAX_ATTEMPTS = 3;
+    // Limites d'une requete groupee : nombre de fichiers, taille de la liste des noms et
+    // octets envoyes, pour qu'un lot interrompu soit vite renvoye
+    private static final int BATCH_MAX_FILES = 1000;
+    private static final int BATCH_MAX_TABLE_BYTES = 256 * 1024;
+    private static final long BATCH_MAX_BYTES = 64L * 1024 * 1024;
+    // Transfert direct (CLIENT_TRANSFER=direct) : le serveur principal ne donne que
+    // l'emplacement des morceaux, que le client ecrit et lit lui-meme sur les esclaves,
+    // DIRECT_THREADS a la fois (CLIENT_DIRECT_THREADS)
+    private static boolean DIRECT_TRANSFER = false;
+    private static int DIRECT_THREADS = 8;
+    // Decoupage et compression des morceaux en transfert direct, comme le serveur principal
+    // (CHUNK_SIZE_MB, CHUNK_COMPRESSION)
+    private static int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static boolean COMPRESS_CHUNKS = true;
+    // Octets decoupes entre deux demandes d'emplacements au serveur principal
+    private static final long DIRECT_WINDOW_BYTES = 64L * 1024 * 1024;
+    // Delai minimal avant de demander un fragment de parite a la place d'un fragment de
+    // donnees lent, pour un morceau code a effacement
+    private static final long SHARD_HEDGE_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // Connexions vers les esclaves, par adresse, threads des transferts directs et threads
+    // des fragments, que les premiers attendent
+    private static final Map<String, SlavePool> SLAVES = new ConcurrentHashMap<>();
+    private static ExecutorService directExecutor;
+    private static ExecutorService shardExecutor;
+    // Tampons des fragments, partages par les transferts directs en cours
+    private static ErasureCoding.ShardBuffers shardBuffers;
 
     public static void main(String[] args) {
         loadConfig();
@@ -17,7 +51,13 @@ public class Client {
             System.out.println("2. Telecharger un fichier");
             System.out.println("3. Supprimer un fichier");
             System.out.println("4. Lister les fichiers disponibles");
-            System.out.println("5. Quitter");
+            System.out.println("5. Informations sur un fichier");
+            System.out.println("6. Telecharger une partie d'un fichier");
+            System.out.println("7. Statistiques du serveur");
+            System.out.println("8. Envoyer un dossier");
+            System.out.println("9. Telecharger un dossier");
+            System.out.println("10. Supprimer un dossier");
+            System.out.println("0. Quitter");
             System.out.print("Choisissez une option : ");
             int choice = scanner.nextInt();
             scanner.nextLine();
@@ -36,6 +76,24 @@ public class Client {
                     listFiles();
                     break;
                 case 5:
+                    statFile(scanner);
+                    break;
+                case 6:
+                    downloadRange(scanner);
+                    break;
+                case 7:
+                    showStats();
+                    break;
+                case 8:
+                    sendDirectory(scanner);
+                    break;
+                case 9:
+                    downloadDirectory(scanner);
+                    break;
+                case 10:
+                    deleteDirectory(scanner);
+                    break;
+                case 0:
                     System.out.println("Au revoir !");
                     return;
                 default:
@@ -52,6 +110,14 @@ public class Client {
                     SERVER_ADDRESS = line.split("=")[1].trim();
                 } else if (line.startsWith("MAIN_SERVER_PORT")) {
                     SERVER_PORT = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("CLIENT_TRANSFER")) {
+                    DIRECT_TRANSFER = line.split("=")[1].trim().equalsIgnoreCase("direct");
+                } else if (line.startsWith("CLIENT_DIRECT_THREADS")) {
+                    DIRECT_THREADS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("CHUNK_SIZE_MB")) {
+                    CHUNK_SIZE = Integer.parseInt(line.split("=")[1].trim()) * 1024 * 1024;
+                } else if (line.startsWith("CHUNK_COMPRESSION")) {
+                    COMPRESS_CHUNKS = !line.split("=")[1].trim().equalsIgnoreCase("none");
                 }
             }
         } catch (IOException e) {
@@ -59,65 +125,715 @@ public class Client {
         }
     }
 
-    // Envoie un fichier au serveur principal
+    // Envoie un fichier au serveur principal. Si la connexion tombe, l'envoi reprend
+    // la ou le serveur l'a laisse au lieu de repartir de zero.
     private static void sendFile(Scanner scanner) {
+        System.out.print("Entrez le chemin du fichier a envoyer : ");
+        String filePath = scanner.nextLine();
+        File file = new File(filePath);
+
+        if (!file.exists()) {
+            System.out.println("Fichier non trouve.");
+            return;
+        }
+        if (DIRECT_TRANSFER) {
+            sendFileDirect(file);
+            return;
+        }
+
+        String uploadId = "";
+        for (int attempt = 1; ; attempt++) {
+            try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+                 RandomAccessFile input = new RandomAccessFile(file, "r")) {
+
+                dataOutputStream.writeUTF("rsend");
+                dataOutputStream.writeUTF(file.getName());
+                dataOutputStream.writeLong(file.length());
+                dataOutputStream.writeUTF(uploadId);
+
+                // Le serveur donne l'identifiant de l'envoi et la position a partir de laquelle continuer
+                uploadId = dataInputStream.readUTF();
+                long offset = dataInputStream.readLong();
+                if (offset > 0) {
+                    System.out.println("Reprise de l'envoi a partir de l'octet " + offset + ".");
+                }
+
+                // Le fichier est envoye par blocs pour ne pas le charger entierement en memoire
+                input.seek(offset);
+                byte[] buffer = new byte[64 * 1024];
+                int bytesRead;
+                while ((bytesRead = input.read(buffer)) != -1) {
+                    dataOutputStream.write(buffer, 0, bytesRead);
+                }
+                String response = dataInputStream.readUTF();
+                System.out.println(response);
+                return;
+
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || uploadId.isEmpty()) {
+                    System.err.println("Erreur lors de l'envoi du fichier : " + e.getMessage());
+                    return;
+                }
+                System.err.println("Connexion interrompue (" + e.getMessage() + "), reprise de l'envoi...");
+            }
+        }
+    }
+
+    // Envoie un fichier directement aux esclaves. Le fichier est decoupe ici, par lots de
+    // DIRECT_WINDOW_BYTES : pour chaque lot, le serveur principal indique les morceaux deja
+    // enregistres et les esclaves ou ecrire les autres ("allocate"), qui sont ecrits en
+    // parallele pendant le decoupage du lot suivant. Chaque demande confirme les morceaux
+    // ecrits du lot precedent, et "commit" enregistre enfin le fichier. Un envoi interrompu
+    // est recommence ; les morceaux deja confirmes n'ont alors plus a etre ecrits.
+    private static void sendFileDirect(File file) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                System.out.println(uploadDirect(file));
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    System.err.println("Erreur lors de l'envoi du fichier : " + e.getMessage());
+                    return;
+                }
+                System.err.println("Envoi interrompu (" + e.getMessage() + "), nouvel essai...");
+            }
+        }
+    }
+
+    private static String uploadDirect(File file) throws IOException {
+        String uploadId = "";
+        CRC32C checksum = new CRC32C();
+        Map<Integer, Future<List<String>>> writes = new LinkedHashMap<>();
+        int written = 0;
+        try (InputStream input = new FileInputStream(file)) {
+            ContentChunker chunker = new ContentChunker(file.length(), CHUNK_SIZE);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            do {
+                List<byte[]> chunks = new ArrayList<>();
+                List<String> keys = new ArrayList<>();
+                long windowBytes = 0;
+                while (chunker.hasMore() && windowBytes < DIRECT_WINDOW_BYTES && chunks.size() < DirectUpload.MAX_CHUNKS) {
+                    chunker.start(buffer);
+                    int length;
+                    while ((length = chunker.cut()) < 0) {
+                        int count = input.read(buffer, chunker.readOffset(), chunker.readLength());
+                        if (count < 0) {
+                            throw new EOFException("Fichier raccourci pendant l'envoi.");
+                        }
+                        chunker.filled(count);
+                    }
+                    byte[] chunk = Arrays.copyOf(buffer, length);
+                    checksum.update(chunk, 0, length);
+                    chunks.add(chunk);
+                    keys.add(ChunkCodec.fingerprint(chunk, length));
+                    windowBytes += length;
+                }
+                Map<Integer, List<String>> confirmations = awaitWrites(writes);
+
+                List<List<String>> targets = new ArrayList<>(chunks.size());
+                int[] dataShards = new int[chunks.size()];
+                try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+                     DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                     DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+                    dataOutputStream.writeUTF("allocate");
+                    dataOutputStream.writeUTF(uploadId);
+                    writeConfirmations(dataOutputStream, confirmations);
+                    dataOutputStream.writeInt(chunks.size());
+                    for (int i = 0; i < chunks.size(); i++) {
+                        dataOutputStream.writeUTF(keys.get(i));
+                        dataOutputStream.writeInt(chunks.get(i).length);
+                    }
+                    dataOutputStream.flush();
+
+                    // Pour chaque morceau : deja enregistre (1) ou a ecrire (0) sur les esclaves
+                    // donnes, en repliques entieres ou en fragments
+                    uploadId = dataInputStream.readUTF();
+                    for (int i = 0; i < chunks.size(); i++) {
+                        boolean stored = dataInputStream.readByte() == 1;
+                        dataShards[i] = dataInputStream.readInt();
+                        List<String> locations = readLocations(dataInputStream);
+                        targets.add(stored ? null : locations);
+                    }
+                }
+
+                // Un morceau qui revient plusieurs fois dans le lot n'est ecrit qu'une fois
+                Map<String, Future<List<String>>> byKey = new HashMap<>();
+                for (int i = 0; i < chunks.size(); i++) {
+                    if (targets.get(i) == null) {
+                        continue;
+                    }
+                    Future<List<String>> write = byKey.get(keys.get(i));
+                    if (write == null) {
+                        byte[] chunk = chunks.get(i);
+                        String key = keys.get(i);
+                        int shards = dataShards[i];
+                        List<String> locations = targets.get(i);
+                        write = executor().submit(() -> writeChunk(chunk, key, shards, locations));
+                        byKey.put(key, write);
+                    }
+                    writes.put(written + i, write);
+                }
+                written += chunks.size();
+            } while (chunker.hasMore());
+        }
+
+        Map<Integer, List<String>> confirmations = awaitWrites(writes);
         try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
              DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
 
-            System.out.print("Entrez le chemin du fichier a envoyer : ");
-            String filePath = scanner.nextLine();
-            File file = new File(filePath);
+            dataOutputStream.writeUTF("commit");
+            dataOutputStream.writeUTF(uploadId);
+            writeConfirmations(dataOutputStream, confirmations);
+            dataOutputStream.writeUTF(file.getName());
+            dataOutputStream.writeLong(file.length());
+            dataOutputStream.writeLong(checksum.getValue());
+            dataOutputStream.flush();
+            return dataInputStream.readUTF();
+        }
+    }
+
+    // Ecrit un morceau sur ses repliques, en chaine ; renvoie celles qui l'ont enregistre.
+    // Un morceau code (dataShards > 0) est ecrit en fragments, un par esclave, et garde tout
+    // son emplacement des que dataShards fragments sont enregistres.
+    private static List<String> writeChunk(byte[] chunk, String key, int dataShards, List<String> locations) throws IOException {
+        List<SlavePool> replicas = new ArrayList<>();
+        for (String location : locations) {
+            replicas.add(slave(location));
+        }
+        if (dataShards > 0) {
+            ErasureCoding.of(dataShards, locations.size() - dataShards)
+                    .write(replicas, key, chunk, chunk.length, COMPRESS_CHUNKS, shardExecutor(), shardBuffers(locations.size()));
+            return locations;
+        }
+        if (COMPRESS_CHUNKS) {
+            byte[] compressed = new byte[chunk.length];
+            int compressedLength = ChunkCodec.compress(chunk, chunk.length, compressed);
+            if (compressedLength >= 0) {
+                return ChunkTransfers.put(replicas, key, SlaveProtocol.CODEC_DEFLATE, compressed, compressedLength);
+            }
+        }
+        return ChunkTransfers.put(replicas, key, SlaveProtocol.CODEC_RAW, chunk, chunk.length);
+    }
+
+    // Attend les ecritures du lot precedent ; renvoie les repliques de chaque morceau ecrit,
+    // par indice dans le fichier
+    private static Map<Integer, List<String>> awaitWrites(Map<Integer, Future<List<String>>> writes) throws IOException {
+        Map<Integer, List<String>> confirmations = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Future<List<String>>> write : writes.entrySet()) {
+            confirmations.put(write.getKey(), await(write.getValue()));
+        }
+        writes.clear();
+        return confirmations;
+    }
+
+    private static void writeConfirmations(DataOutputStream dataOutputStream, Map<Integer, List<String>> confirmations) throws IOException {
+        dataOutputStream.writeInt(confirmations.size());
+        for (Map.Entry<Integer, List<String>> confirmation : confirmations.entrySet()) {
+            dataOutputStream.writeInt(confirmation.getKey());
+            dataOutputStream.writeInt(confirmation.getValue().size());
+            for (String location : confirmation.getValue()) {
+                dataOutputStream.writeUTF(location);
+            }
+        }
+    }
 
-            if (!file.exists()) {
-                System.out.println("Fichier non trouve.");
+    private static List<String> readLocations(DataInputStream dataInputStream) throws IOException {
+        int count = dataInputStream.readInt();
+        List<String> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(dataInputStream.readUTF());
+        }
+        return locations;
+    }
+
+    // Telecharge un fichier directement depuis les esclaves : le serveur principal donne
+    // l'emplacement de ses morceaux ("locate"), lus en parallele et ecrits chacun a sa place
+    // dans le fichier. Une replique injoignable ou absente est remplacee par la suivante ;
+    // une replique alteree est en plus signalee au serveur principal, qui la repare.
+    private static void downloadFileDirect(String fileName) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                System.out.println(downloadDirect(fileName));
                 return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    System.err.println("Erreur lors du telechargement du fichier : " + e.getMessage());
+                    return;
+                }
+                System.err.println("Telechargement interrompu (" + e.getMessage() + "), nouvel essai...");
             }
+        }
+    }
 
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                byte[] fileBytes = new byte[(int) file.length()];
-                fileInputStream.read(fileBytes);
+    private static String downloadDirect(String fileName) throws IOException {
+        long fileSize;
+        List<ChunkSlice> slices = new ArrayList<>();
+        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
 
-                dataOutputStream.writeUTF("send");
-                dataOutputStream.writeUTF(file.getName());
-                dataOutputStream.writeLong(file.length());
-                dataOutputStream.write(fileBytes);
+            dataOutputStream.writeUTF("locate");
+            dataOutputStream.writeUTF(fileName);
+            fileSize = dataInputStream.readLong();
+            if (fileSize < 0) {
+                return "Fichier introuvable.";
             }
-            String response = dataInputStream.readUTF();
-            System.out.println(response);
+            int count = dataInputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                slices.add(new ChunkSlice(dataInputStream.readUTF(), dataInputStream.readInt(),
+                        dataInputStream.readInt(), dataInputStream.readInt(), dataInputStream.readInt(),
+                        readLocations(dataInputStream)));
+            }
+        }
+
+        try (RandomAccessFile output = new RandomAccessFile(downloadTarget(fileName), "rw")) {
+            output.setLength(fileSize);
+            FileChannel channel = output.getChannel();
+            List<Future<Void>> reads = new ArrayList<>(slices.size());
+            long position = 0;
+            for (ChunkSlice slice : slices) {
+                long slicePosition = position;
+                reads.add(executor().submit(() -> {
+                    byte[] chunk = readChunk(slice);
+                    ByteBuffer bytes = ByteBuffer.wrap(chunk, slice.from, slice.to - slice.from);
+                    long at = slicePosition;
+                    while (bytes.hasRemaining()) {
+                        at += channel.write(bytes, at);
+                    }
+                    return null;
+                }));
+                position += slice.to - slice.from;
+            }
+            for (Future<Void> read : reads) {
+                await(read);
+            }
+        }
+        return "Fichier telecharge avec succes.";
+    }
+
+    // Lit un morceau sur la premiere de ses repliques qui le donne intact, ou le reconstitue
+    // a partir des premiers fragments arrives s'il est code. Une replique alteree est laissee
+    // a la verification de fond de son esclave, qui en demande la reparation.
+    private static byte[] readChunk(ChunkSlice slice) throws IOException {
+        byte[] chunk = new byte[slice.length];
+        if (slice.dataShards > 0) {
+            List<SlavePool> slaves = new ArrayList<>();
+            long hedge = SHARD_HEDGE_MIN_NANOS;
+            for (String location : slice.locations) {
+                slaves.add(slave(location));
+            }
+            for (SlavePool dataSlave : slaves.subList(0, slice.dataShards)) {
+                hedge = Math.max(hedge, 2 * dataSlave.averageNanos());
+            }
+            ErasureCoding.of(slice.dataShards, slaves.size() - slice.dataShards).read(slaves, slice.key, slice.length,
+                    chunk, shardExecutor(), hedge, () -> {
+                    }, shardBuffers(slaves.size()));
+            return chunk;
+        }
+        IOException failure = new IOException("aucune replique pour " + slice.key);
+        for (String location : slice.locations) {
+            try {
+                if (ChunkTransfers.get(slave(location), slice.key, chunk) != slice.length) {
+                    throw new IOException(location + " : " + slice.key + " : taille inattendue");
+                }
+                return chunk;
+            } catch (ChunkCodec.CorruptChunkException e) {
+                System.err.println("Replique alteree : " + e.getMessage());
+                failure = e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static SlavePool slave(String address) {
+        return SLAVES.computeIfAbsent(address, key -> {
+            int colon = key.lastIndexOf(':');
+            return new SlavePool(key.substring(0, colon), Integer.parseInt(key.substring(colon + 1)));
+        });
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (directExecutor == null) {
+            directExecutor = Executors.newFixedThreadPool(DIRECT_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "direct-transfer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return directExecutor;
+    }
+
+    // Sans limite de taille : chaque tache de transfert direct y attend ses fragments
+    private static synchronized ExecutorService shardExecutor() {
+        if (shardExecutor == null) {
+            shardExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "direct-shard");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return shardExecutor;
+    }
+
+    // Assez de fragments pour que chaque thread de transfert direct ecrive un morceau, avec
+    // la version compressee de ses fragments de donnees
+    private static synchronized ErasureCoding.ShardBuffers shardBuffers(int totalShards) {
+        if (shardBuffers == null) {
+            shardBuffers = new ErasureCoding.ShardBuffers(DIRECT_THREADS * 2 * totalShards);
+        }
+        return shardBuffers;
+    }
+
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfert interrompu.");
+        }
+    }
+
+    // Envoie tous les fichiers d'un dossier et de ses sous-dossiers, par lots (action "msend") :
+    // un fichier dossier/sous-dossier/nom est enregistre sous ce nom. Les petits fichiers d'un
+    // lot sont ranges ensemble dans des morceaux communs par le serveur principal.
+    private static void sendDirectory(Scanner scanner) {
+        System.out.print("Entrez le chemin du dossier a envoyer : ");
+        Path directory = Paths.get(scanner.nextLine()).toAbsolutePath().normalize();
+        if (!Files.isDirectory(directory)) {
+            System.out.println("Dossier non trouve.");
+            return;
+        }
 
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = new ArrayList<>();
+            paths.filter(Files::isRegularFile).sorted().forEach(files::add);
         } catch (IOException e) {
-            System.err.println("Erreur lors de l'envoi du fichier : " + e.getMessage());
+            System.err.println("Erreur lors du parcours du dossier : " + e.getMessage());
+            return;
+        }
+
+        int sent = 0;
+        List<Path> batch = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int tableBytes = 0;
+        long batchBytes = 0;
+        for (Path file : files) {
+            String name = directory.getFileName() + "/" + directory.relativize(file).toString().replace(File.separatorChar, '/');
+            long size = file.toFile().length();
+            int entryBytes = 2 + name.length() * 3 + 8;
+            if (!batch.isEmpty() && (batch.size() >= BATCH_MAX_FILES || tableBytes + entryBytes > BATCH_MAX_TABLE_BYTES
+                    || batchBytes + size > BATCH_MAX_BYTES)) {
+                if (!sendBatch(batch, names)) {
+                    return;
+                }
+                sent += batch.size();
+                batch.clear();
+                names.clear();
+                tableBytes = 0;
+                batchBytes = 0;
+            }
+            batch.add(file);
+            names.add(name);
+            tableBytes += entryBytes;
+            batchBytes += size;
+        }
+        if (!batch.isEmpty() && !sendBatch(batch, names)) {
+            return;
         }
+        System.out.println((sent + batch.size()) + " fichiers envoyes.");
     }
 
-    // Telecharge un fichier depuis le serveur principal
+    // Envoie un lot : nombre de fichiers, nom et taille de chacun, puis leurs octets a la suite.
+    // Un lot interrompu n'est pas enregistre par le serveur et il est renvoye en entier.
+    private static boolean sendBatch(List<Path> files, List<String> names) {
+        for (int attempt = 1; ; attempt++) {
+            try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+                 DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+                long[] sizes = new long[files.size()];
+                dataOutputStream.writeUTF("msend");
+                dataOutputStream.writeInt(files.size());
+                for (int i = 0; i < files.size(); i++) {
+                    sizes[i] = files.get(i).toFile().length();
+                    dataOutputStream.writeUTF(names.get(i));
+                    dataOutputStream.writeLong(sizes[i]);
+                }
+
+                byte[] buffer = new byte[64 * 1024];
+                for (int i = 0; i < files.size(); i++) {
+                    try (InputStream input = new FileInputStream(files.get(i).toFile())) {
+                        long remaining = sizes[i];
+                        while (remaining > 0) {
+                            int bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bytesRead == -1) {
+                                throw new IOException(files.get(i) + " a ete modifie pendant l'envoi.");
+                            }
+                            dataOutputStream.write(buffer, 0, bytesRead);
+                            remaining -= bytesRead;
+                        }
+                    }
+                }
+                dataOutputStream.flush();
+                System.out.println(dataInputStream.readUTF());
+                return true;
+
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    System.err.println("Erreur lors de l'envoi du dossier : " + e.getMessage());
+                    return false;
+                }
+                System.err.println("Connexion interrompue (" + e.getMessage() + "), nouvel envoi du lot...");
+            }
+        }
+    }
+
+    // Telecharge tous les fichiers enregistres sous dossier/ dans download/dossier/, par lots
+    // (action "mget")
+    private static void downloadDirectory(Scanner scanner) {
+        System.out.print("Entrez le nom du dossier a telecharger : ");
+        String directory = scanner.nextLine();
+        List<String> names = filesUnder(directory);
+        if (names == null) {
+            return;
+        }
+        if (names.isEmpty()) {
+            System.out.println("Dossier introuvable.");
+            return;
+        }
+        int received = 0;
+        for (int from = 0; from < names.size(); from += BATCH_MAX_FILES) {
+            List<String> batch = names.subList(from, Math.min(names.size(), from + BATCH_MAX_FILES));
+            int count = downloadBatch(batch);
+            if (count < 0) {
+                return;
+            }
+            received += count;
+        }
+        System.out.println(received + " fichiers telecharges.");
+    }
+
+    // Telecharge un lot ; renvoie le nombre de fichiers recus, ou -1 en cas d'erreur
+    private static int downloadBatch(List<String> names) {
+        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+             DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+
+            dataOutputStream.writeUTF("mget");
+            writeNames(dataOutputStream, names);
+            dataOutputStream.flush();
+
+            // Taille de chaque fichier (-1 s'il a disparu entre-temps), puis leurs octets a la suite
+            int count = dataInputStream.readInt();
+            long[] sizes = new long[count];
+            for (int i = 0; i < count; i++) {
+                sizes[i] = dataInputStream.readLong();
+            }
+            int received = 0;
+            byte[] buffer = new byte[64 * 1024];
+            for (int i = 0; i < count; i++) {
+                if (sizes[i] < 0) {
+                    System.out.println(names.get(i) + " : fichier introuvable.");
+                    continue;
+                }
+                try (FileOutputStream fileOutputStream = new FileOutputStream(downloadTarget(names.get(i)))) {
+                    long remaining = sizes[i];
+                    while (remaining > 0) {
+                        int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Transfert interrompu : " + remaining + " octets manquants pour " + names.get(i) + ".");
+                        }
+                        fileOutputStream.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                }
+                received++;
+            }
+            return received;
+
+        } catch (IOException e) {
+            System.err.println("Erreur lors du telechargement du dossier : " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // Supprime tous les fichiers enregistres sous dossier/, par lots (action "mdelete")
+    private static void deleteDirectory(Scanner scanner) {
+        System.out.print("Entrez le nom du dossier a supprimer : ");
+        String directory = scanner.nextLine();
+        List<String> names = filesUnder(directory);
+        if (names == null) {
+            return;
+        }
+        if (names.isEmpty()) {
+            System.out.println("Dossier introuvable.");
+            return;
+        }
+        for (int from = 0; from < names.size(); from += BATCH_MAX_FILES) {
+            List<String> batch = names.subList(from, Math.min(names.size(), from + BATCH_MAX_FILES));
+            try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+                 DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+                dataOutputStream.writeUTF("mdelete");
+                writeNames(dataOutputStream, batch);
+                dataOutputStream.flush();
+                System.out.println(dataInputStream.readUTF());
+
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la suppression du dossier : " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // Noms des fichiers enregistres sous dossier/, tries pour etre demandes dans l'ordre de
+    // leur envoi ; null en cas d'erreur. Les noms qui sortiraient de download/ sont ignores.
+    private static List<String> filesUnder(String directory) {
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        List<String> names = new ArrayList<>();
+        try {
+            for (String name : fetchFileNames()) {
+                if (name.startsWith(prefix) && !name.startsWith("/") && !Arrays.asList(name.split("/")).contains("..")) {
+                    names.add(name);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la liste des fichiers : " + e.getMessage());
+            return null;
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    // Fichier ou enregistrer un telechargement ; un nom envoye avec un dossier
+    // (dossier/sous-dossier/nom) recree ses sous-dossiers dans download/
+    private static File downloadTarget(String name) {
+        File target = new File("download", name);
+        target.getParentFile().mkdirs();
+        return target;
+    }
+
+    private static void writeNames(DataOutputStream dataOutputStream, List<String> names) throws IOException {
+        dataOutputStream.writeInt(names.size());
+        for (String name : names) {
+            dataOutputStream.writeUTF(name);
+        }
+    }
+
+    // Telecharge un fichier depuis le serveur principal. Si la connexion tombe, seule la
+    // partie manquante est redemandee.
     private static void downloadFile(Scanner scanner) {
+        System.out.print("Entrez le nom du fichier a telecharger : ");
+        String fileName = scanner.nextLine();
+        if (DIRECT_TRANSFER) {
+            downloadFileDirect(fileName);
+            return;
+        }
+
+        long fileSize = 0;
+        long received = 0;
+        for (int attempt = 1; ; attempt++) {
+            try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+                if (received == 0) {
+                    dataOutputStream.writeUTF("get");
+                    dataOutputStream.writeUTF(fileName);
+                    fileSize = dataInputStream.readLong();
+                    if (fileSize == 0) {
+                        System.out.println("Fichier introuvable.");
+                        return;
+                    }
+                } else {
+                    dataOutputStream.writeUTF("range");
+                    dataOutputStream.writeUTF(fileName);
+                    dataOutputStream.writeLong(received);
+                    dataOutputStream.writeLong(fileSize - received);
+                    if (dataInputStream.readLong() != fileSize) {
+                        System.out.println("Le fichier a ete modifie ou supprime sur le serveur.");
+                        return;
+                    }
+                    dataInputStream.readLong();
+                }
+
+                // Le fichier est ecrit sur disque au fur et a mesure de sa reception
+                try (FileOutputStream fileOutputStream = new FileOutputStream(downloadTarget(fileName), received > 0)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    while (received < fileSize) {
+                        int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, fileSize - received));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Transfert interrompu : " + (fileSize - received) + " octets manquants.");
+                        }
+                        fileOutputStream.write(buffer, 0, bytesRead);
+                        received += bytesRead;
+                    }
+                }
+                System.out.println("Fichier telecharge avec succes.");
+                return;
+
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || received == 0) {
+                    System.err.println("Erreur lors du telechargement du fichier : " + e.getMessage());
+                    return;
+                }
+                System.err.println("Connexion interrompue (" + e.getMessage() + "), reprise a l'octet " + received + "...");
+            }
+        }
+    }
+
+    // Telecharge les octets [debut, debut + longueur) d'un fichier dans download/nom.debut-fin
+    private static void downloadRange(Scanner scanner) {
         try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
              DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
              DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
 
-            System.out.print("Entrez le nom du fichier a telecharger : ");
+            System.out.print("Entrez le nom du fichier : ");
             String fileName = scanner.nextLine();
+            System.out.print("Position du premier octet : ");
+            long offset = scanner.nextLong();
+            System.out.print("Nombre d'octets : ");
+            long length = scanner.nextLong();
+            scanner.nextLine();
 
-            dataOutputStream.writeUTF("get");
+            dataOutputStream.writeUTF("range");
             dataOutputStream.writeUTF(fileName);
+            dataOutputStream.writeLong(offset);
+            dataOutputStream.writeLong(length);
 
             long fileSize = dataInputStream.readLong();
-            if (fileSize == 0) {
+            if (fileSize < 0) {
                 System.out.println("Fichier introuvable.");
-            } else {
-                byte[] fileBytes = new byte[(int) fileSize];
-                dataInputStream.readFully(fileBytes);
-
-                try (FileOutputStream fileOutputStream = new FileOutputStream("download/" + fileName)) {
-                    fileOutputStream.write(fileBytes);
+                return;
+            }
+            long count = dataInputStream.readLong();
+            try (FileOutputStream fileOutputStream = new FileOutputStream(downloadTarget(fileName + "." + offset + "-" + (offset + count)))) {
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = count;
+                while (remaining > 0) {
+                    int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Transfert interrompu : " + remaining + " octets manquants.");
+                    }
+                    fileOutputStream.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
                 }
-                System.out.println("Fichier telecharge avec succes.");
             }
+            System.out.println(count + " octets telecharges sur " + fileSize + ".");
 
         } catch (IOException e) {
-            System.err.println("Erreur lors du telechargement du fichier : " + e.getMessage());
+            System.err.println("Erreur lors du telechargement de la plage : " + e.getMessage());
         }
     }
 
@@ -143,25 +859,103 @@ public class Client {
 
     // Liste les fichiers disponibles
     private static void listFiles() {
+        try {
+            List<String> names = fetchFileNames();
+            if (names.isEmpty()) {
+                System.out.println("Aucun fichier disponible.");
+            } else {
+                System.out.println("Fichiers disponibles :");
+                for (String filename : names) {
+                    System.out.println(filename);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la liste des fichiers : " + e.getMessage());
+        }
+    }
+
+    private static List<String> fetchFileNames() throws IOException {
         try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
              DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+             DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
 
             dataOutputStream.writeUTF("list");
 
             int fileCount = dataInputStream.readInt();
-            if (fileCount == 0) {
-                System.out.println("Aucun fichier disponible.");
+            List<String> names = new ArrayList<>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                names.add(dataInputStream.readUTF());
+            }
+            return names;
+        }
+    }
+
+    // Affiche les compteurs du serveur principal
+    private static void showStats() {
+        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+            dataOutputStream.writeUTF("stats");
+
+            int count = dataInputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = dataInputStream.readUTF();
+                long value = dataInputStream.readLong();
+                System.out.println(name + " = " + value);
+            }
+
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la lecture des statistiques : " + e.getMessage());
+        }
+    }
+
+    // Affiche les informations d'un fichier sans le telecharger
+    private static void statFile(Scanner scanner) {
+        try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dataInputStream = new DataInputStream(socket.getInputStream())) {
+
+            System.out.print("Entrez le nom du fichier : ");
+            String fileName = scanner.nextLine();
+
+            dataOutputStream.writeUTF("stat");
+            dataOutputStream.writeUTF(fileName);
+
+            long fileSize = dataInputStream.readLong();
+            if (fileSize < 0) {
+                System.out.println("Fichier introuvable.");
             } else {
-                System.out.println("Fichiers disponibles :");
-                for (int i = 0; i < fileCount; i++) {
-                    String filename = dataInputStream.readUTF();
-                    System.out.println(filename);
-                }
+                int chunkCount = dataInputStream.readInt();
+                long checksum = dataInputStream.readLong();
+                long modified = dataInputStream.readLong();
+                System.out.println("Taille : " + fileSize + " octets en " + chunkCount + " morceaux");
+                System.out.println("CRC32C : " + Long.toHexString(checksum));
+                System.out.println("Modifie le : " + new Date(modified));
             }
 
         } catch (IOException e) {
-            System.err.println("Erreur lors de la liste des fichiers : " + e.getMessage());
+            System.err.println("Erreur lors de la lecture des informations du fichier : " + e.getMessage());
+        }
+    }
+
+    // Portion [from, to) d'un morceau de length octets, a lire sur l'une de ses repliques
+    // ou a reconstituer a partir de dataShards de ses fragments
+    private static class ChunkSlice {
+        final String key;
+        final int length;
+        final int from;
+        final int to;
+        final int dataShards;
+        final List<String> locations;
+
+        ChunkSlice(String key, int length, int from, int to, int dataShards, List<String> locations) {
+            this.key = key;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+            this.dataShards = dataShards;
+            this.locations = locations;
         }
     }
 }
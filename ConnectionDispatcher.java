@@ -0,0 +1,91 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Modèle d'exécution des connexions acceptées par un serveur.
+//
+// Le nombre de connexions servies en même temps est borné : la boucle d'acceptation
+// attend qu'un créneau se libère avant d'accepter la connexion suivante. Les clients en
+// surnombre patientent alors dans la file d'attente TCP du système (backlog), ce qui
+// ralentit les nouveaux arrivants au lieu d'épuiser les threads et la mémoire.
+//
+// Deux modes (EXECUTION_MODE dans config.txt) :
+//  - "pool"    : un pool de threads plateforme, au plus un par connexion admise ;
+//  - "virtual" : un thread virtuel par connexion (Java 21 et plus), sinon repli sur "pool".
+class ConnectionDispatcher {
+    private final Semaphore slots;
+    private final ExecutorService executor;
+    private final AtomicInteger active = new AtomicInteger();
+    private final boolean virtual;
+
+    ConnectionDispatcher(String name, String mode, int maxConnections) {
+        slots = new Semaphore(maxConnections);
+        ExecutorService virtualExecutor = "virtual".equalsIgnoreCase(mode) ? newVirtualThreadExecutor() : null;
+        if ("virtual".equalsIgnoreCase(mode) && virtualExecutor == null) {
+            System.err.println("Threads virtuels indisponibles sur cette JVM : utilisation d'un pool de threads.");
+        }
+        virtual = virtualExecutor != null;
+        executor = virtual ? virtualExecutor : newBoundedPool(name, maxConnections);
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    // Connexions en cours de traitement
+    int activeConnections() {
+        return active.get();
+    }
+
+    // Connexions en attente d'un thread (toujours 0 avec des threads virtuels)
+    int queuedConnections() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    // Bloque tant que le nombre maximal de connexions est atteint
+    void awaitSlot() throws InterruptedException {
+        slots.acquire();
+    }
+
+    // Exécute le traitement d'une connexion admise par awaitSlot(), puis libère son créneau
+    void dispatch(Runnable handler) {
+        active.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    active.decrementAndGet();
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            active.decrementAndGet();
+            slots.release();
+            throw e;
+        }
+    }
+
+    // Pool de taille fixe dont les threads inactifs finissent par s'arrêter ; le sémaphore
+    // garantit qu'aucune connexion admise n'attend longtemps un thread
+    private static ExecutorService newBoundedPool(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() n'existe qu'à partir de Java 21 :
+    // il est appelé par réflexion pour que le code reste compilable avec Java 17
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Random;
+
+// Découpage d'un flux en morceaux définis par leur contenu.
+//
+// Une empreinte glissante (hachage « gear ») est calculée sur les octets reçus ; un morceau
+// se termine là où ses bits de poids fort sont nuls. Une insertion ou une suppression au
+// début d'un fichier ne décale donc que les morceaux voisins : les suivants retrouvent les
+// mêmes frontières et le même contenu, ce qui permet de les dédupliquer.
+//
+// Les morceaux font entre maxSize / 16 et maxSize octets, environ maxSize / 4 en moyenne.
+// Chaque morceau est rempli dans un tampon de maxSize octets par lectures d'au plus
+// SLICE_SIZE octets ; les octets lus au-delà d'une frontière sont reportés au morceau suivant.
+class ContentChunker {
+    private static final int SLICE_SIZE = 64 * 1024;
+    // Table fixe : les mêmes données donnent les mêmes frontières d'un démarrage à l'autre
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+    private long remaining;
+    private final byte[] carry = new byte[SLICE_SIZE];
+    private int carryLength;
+    private byte[] buffer;
+    private int filled;
+    private int scanned;
+    private long hash;
+
+    // Découpe un flux de streamSize octets en morceaux d'au plus maxSize octets
+    ContentChunker(long streamSize, int maxSize) {
+        this.remaining = streamSize;
+        this.maxSize = maxSize;
+        this.minSize = Math.max(1, maxSize / 16);
+        int bits = Math.max(1, 31 - Integer.numberOfLeadingZeros(Math.max(2, maxSize / 4)));
+        this.mask = -1L << (64 - bits);
+    }
+
+    // Reste-t-il des octets à découper ?
+    boolean hasMore() {
+        return remaining > 0 || carryLength > 0;
+    }
+
+    // Commence un morceau dans le tampon, avec les octets reportés du précédent
+    void start(byte[] chunkBuffer) {
+        buffer = chunkBuffer;
+        System.arraycopy(carry, 0, buffer, 0, carryLength);
+        filled = carryLength;
+        carryLength = 0;
+        scanned = 0;
+        hash = 0;
+    }
+
+    // Emplacement et taille de la prochaine lecture dans le tampon du morceau
+    int readOffset() {
+        return filled;
+    }
+
+    int readLength() {
+        return (int) Math.min(Math.min(SLICE_SIZE, maxSize - filled), remaining);
+    }
+
+    // Enregistre count octets lus à readOffset()
+    void filled(int count) {
+        filled += count;
+        remaining -= count;
+    }
+
+    // Cherche la fin du morceau dans les octets reçus : renvoie sa taille, les octets suivants
+    // étant reportés au morceau suivant, ou -1 s'il faut lire davantage
+    int cut() {
+        for (; scanned < filled; scanned++) {
+            if (scanned < minSize) {
+                continue;
+            }
+            hash = (hash << 1) + GEAR[buffer[scanned] & 0xff];
+            if ((hash & mask) == 0) {
+                return split(scanned + 1);
+            }
+        }
+        if (filled == maxSize || remaining == 0) {
+            return split(filled);
+        }
+        return -1;
+    }
+
+    private int split(int length) {
+        carryLength = filled - length;
+        System.arraycopy(buffer, length, carry, 0, carryLength);
+        buffer = null;
+        return length;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.*;
+import java.util.*;
+
+// Envoi direct d'un fichier : le client écrit lui-même ses morceaux sur les esclaves, et le
+// serveur principal ne voit passer que leurs clés.
+//
+// Le client découpe le fichier et demande, lot par lot (action "allocate"), où écrire chaque
+// morceau : les morceaux déjà connus du catalogue n'ont pas à être écrits, les autres ont
+// des répliques prévues, qui les reçoivent en chaîne, ou des fragments prévus s'ils sont
+// codés à effacement. Le lot suivant (ou l'action "commit") confirme les répliques qui ont
+// effectivement enregistré chaque morceau écrit ; le commit enregistre enfin le fichier dans
+// le catalogue. D'ici là, tous les morceaux de l'envoi restent épinglés, et un envoi sans
+// nouvelles pendant le délai des envois interrompus est abandonné.
+class DirectUpload {
+    // Nombre maximal de morceaux demandés ou confirmés dans une requête
+    static final int MAX_CHUNKS = 4096;
+
+    final String id;
+    // Morceaux du fichier dans l'ordre : emplacement connu, ou prévu pour ceux à écrire
+    final List<MetadataCatalog.ChunkRef> chunks = new ArrayList<>();
+    // Indices dans chunks des morceaux prévus dont l'écriture n'est pas encore confirmée
+    final BitSet planned = new BitSet();
+    // Envoi terminé ou abandonné : plus aucune requête ne le modifie
+    boolean closed;
+    private long lastActive = System.currentTimeMillis();
+
+    DirectUpload(String id) {
+        this.id = id;
+    }
+
+    synchronized void touch() {
+        lastActive = System.currentTimeMillis();
+    }
+
+    // Sans nouvelles du client depuis plus de timeoutMillis
+    synchronized boolean isExpired(long timeoutMillis) {
+        return System.currentTimeMillis() - lastActive > timeoutMillis;
+    }
+
+    // Confirmations d'écriture : nombre de morceaux (int), puis pour chacun son indice dans
+    // le fichier (int) et les adresses des répliques qui l'ont enregistré (int, puis UTF)
+    static Map<Integer, List<String>> readConfirmations(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        Map<Integer, List<String>> confirmations = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            int replicas = in.readInt();
+            if (replicas <= 0 || replicas > 64) {
+                throw new IOException("Nombre de répliques invalide : " + replicas);
+            }
+            List<String> locations = new ArrayList<>(replicas);
+            for (int r = 0; r < replicas; r++) {
+                locations.add(in.readUTF());
+            }
+            confirmations.put(index, locations);
+        }
+        return confirmations;
+    }
+
+    static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_CHUNKS) {
+            throw new IOException("Requête de " + count + " morceaux refusée (" + MAX_CHUNKS + " au plus).");
+        }
+        return count;
+    }
+
+    // Requête "allocate" : identifiant de l'envoi ("" pour en commencer un), confirmations
+    // du lot précédent, puis nombre de morceaux (int) et la clé (UTF) et la taille (int) de chacun
+    static class Allocation {
+        final String uploadId;
+        final Map<Integer, List<String>> confirmations;
+        final List<String> keys;
+        final int[] lengths;
+
+        private Allocation(String uploadId, Map<Integer, List<String>> confirmations, List<String> keys, int[] lengths) {
+            this.uploadId = uploadId;
+            this.confirmations = confirmations;
+            this.keys = keys;
+            this.lengths = lengths;
+        }
+
+        static Allocation readFrom(DataInputStream in) throws IOException {
+            String uploadId = in.readUTF();
+            Map<Integer, List<String>> confirmations = readConfirmations(in);
+            int count = readCount(in);
+            List<String> keys = new ArrayList<>(count);
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+                lengths[i] = in.readInt();
+            }
+            return new Allocation(uploadId, confirmations, keys, lengths);
+        }
+    }
+
+    // Requête "commit" : identifiant de l'envoi, confirmations du dernier lot, puis nom (UTF),
+    // taille (long) et CRC32C (long) du fichier
+    static class Commit {
+        final String uploadId;
+        final Map<Integer, List<String>> confirmations;
+        final String filename;
+        final long fileSize;
+        final long checksum;
+
+        private Commit(String uploadId, Map<Integer, List<String>> confirmations, String filename, long fileSize, long checksum) {
+            this.uploadId = uploadId;
+            this.confirmations = confirmations;
+            this.filename = filename;
+            this.fileSize = fileSize;
+            this.checksum = checksum;
+        }
+
+        static Commit readFrom(DataInputStream in) throws IOException {
+            return new Commit(in.readUTF(), readConfirmations(in), in.readUTF(), in.readLong(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Codage à effacement des morceaux : Reed-Solomon sur GF(2^8), k fragments de données et
+// m fragments de parité.
+//
+// Un morceau de length octets est coupé en k fragments de shardSize(length) octets, le
+// dernier complété par des zéros, auxquels s'ajoutent m fragments de parité ; le fragment i
+// est enregistré sous le nom clé.i sur le i-ème esclave de l'emplacement du morceau.
+// N'importe quels k fragments suffisent à le reconstituer : il survit à la perte de m
+// esclaves en occupant (k + m) / k fois sa taille, au lieu de m + 1 fois en répliques entières.
+//
+// La matrice de codage est systématique (ses k premières lignes forment l'identité) : tant
+// que les fragments de données arrivent, une lecture n'a rien à décoder. Chaque morceau est
+// codé ou décodé dans la tâche qui l'envoie ou le lit, si bien que les morceaux en vol d'un
+// transfert occupent en parallèle tous les cœurs.
+//
+// Les fragments occupent des tampons pris dans un pool borné (ShardBuffers), partagé par
+// tous les morceaux en vol ; un morceau reconstitué est décodé directement dans sa cible.
+final class ErasureCoding {
+    // Polynôme de GF(2^8) : x^8 + x^4 + x^3 + x^2 + 1
+    private static final int POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    // MULTIPLY[a][b] = a * b dans GF(2^8) : 64 Ko, une ligne par coefficient de la matrice
+    private static final byte[][] MULTIPLY = new byte[256][256];
+    // Codes déjà construits, par (k, m) : les morceaux gardent le codage de leur écriture
+    private static final Map<Long, ErasureCoding> CODES = new ConcurrentHashMap<>();
+
+    static {
+        int value = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) value;
+            EXP[i + 255] = (byte) value;
+            LOG[value] = i;
+            value <<= 1;
+            if ((value & 0x100) != 0) {
+                value ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    final int dataShards;
+    final int parityShards;
+    // (k + m) lignes de k coefficients : le fragment i vaut la somme des matrix[i][j] * données j
+    private final byte[][] matrix;
+
+    private ErasureCoding(int dataShards, int parityShards) {
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        // Matrice de Vandermonde, dont k lignes quelconques sont inversibles, ramenée à une
+        // forme systématique en la multipliant par l'inverse de ses k premières lignes
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int row = 0; row < total; row++) {
+            for (int column = 0; column < dataShards; column++) {
+                vandermonde[row][column] = power(row, column);
+            }
+        }
+        byte[][] top = invert(Arrays.copyOf(vandermonde, dataShards));
+        matrix = new byte[total][dataShards];
+        for (int row = 0; row < total; row++) {
+            for (int column = 0; column < dataShards; column++) {
+                int sum = 0;
+                for (int i = 0; i < dataShards; i++) {
+                    sum ^= multiply(vandermonde[row][i], top[i][column]);
+                }
+                matrix[row][column] = (byte) sum;
+            }
+        }
+    }
+
+    static ErasureCoding of(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("Codage " + dataShards + "+" + parityShards + " impossible");
+        }
+        return CODES.computeIfAbsent(((long) dataShards << 32) | parityShards,
+                code -> new ErasureCoding(dataShards, parityShards));
+    }
+
+    int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    int shardSize(int length) {
+        return (length + dataShards - 1) / dataShards;
+    }
+
+    // Nom sur les esclaves du fragment index d'un morceau
+    static String shardName(String key, int index) {
+        return key + "." + index;
+    }
+
+    // Clé du morceau d'une partie, qu'elle soit un fragment ou un morceau entier
+    static String keyOf(String partName) {
+        int dot = partName.indexOf('.');
+        return dot < 0 ? partName : partName.substring(0, dot);
+    }
+
+    // Fragments d'un morceau dans shards : les k fragments de données, copiés du morceau et
+    // complétés par des zéros, puis les m fragments de parité
+    void encode(byte[] chunk, int length, byte[][] shards) {
+        int size = shardSize(length);
+        for (int i = 0; i < dataShards; i++) {
+            int count = dataCount(i, length);
+            System.arraycopy(chunk, i * size, shards[i], 0, count);
+            Arrays.fill(shards[i], count, size, (byte) 0);
+        }
+        for (int p = dataShards; p < totalShards(); p++) {
+            parity(p, chunk, length, shards[p]);
+        }
+    }
+
+    // Fragment de parité p d'un morceau, calculé directement depuis ses octets
+    private void parity(int p, byte[] chunk, int length, byte[] output) {
+        int size = shardSize(length);
+        Arrays.fill(output, 0, size, (byte) 0);
+        for (int i = 0; i < dataShards; i++) {
+            multiplyAdd(matrix[p][i], chunk, i * size, output, 0, dataCount(i, length));
+        }
+    }
+
+    // Octets du morceau dans le fragment de données i, sans le remplissage final
+    private int dataCount(int index, int length) {
+        int size = shardSize(length);
+        return Math.max(0, Math.min(size, length - index * size));
+    }
+
+    // Reconstitue les length octets d'un morceau dans target à partir d'au moins k
+    // fragments (null pour un fragment absent) ; les fragments de données absents sont
+    // recalculés directement à leur place dans target, sans tampon supplémentaire
+    void decode(byte[][] shards, int length, byte[] target) {
+        int size = shardSize(length);
+        int[] rows = new int[dataShards];
+        int found = 0;
+        boolean missingData = false;
+        for (int i = 0; i < totalShards() && found < dataShards; i++) {
+            if (shards[i] != null) {
+                rows[found++] = i;
+            } else if (i < dataShards) {
+                missingData = true;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException(found + " fragments sur les " + dataShards + " nécessaires");
+        }
+        byte[][] decoding = null;
+        if (missingData) {
+            byte[][] selected = new byte[dataShards][];
+            for (int j = 0; j < dataShards; j++) {
+                selected[j] = matrix[rows[j]];
+            }
+            decoding = invert(selected);
+        }
+        for (int i = 0; i < dataShards; i++) {
+            int count = dataCount(i, length);
+            if (shards[i] != null) {
+                System.arraycopy(shards[i], 0, target, i * size, count);
+                continue;
+            }
+            Arrays.fill(target, i * size, i * size + count, (byte) 0);
+            for (int j = 0; j < dataShards; j++) {
+                multiplyAdd(decoding[i][j], shards[rows[j]], 0, target, i * size, count);
+            }
+        }
+    }
+
+    // Écrit en parallèle les fragments d'un morceau, le i-ème sur slaves.get(i) ; échoue si
+    // moins de k fragments ont pu être enregistrés. Seuls les fragments de données sont
+    // compressés : la parité ne se compresse pas.
+    void write(List<SlavePool> slaves, String key, byte[] chunk, int length, boolean compress,
+               ExecutorService executor, ShardBuffers buffers) throws IOException {
+        int size = shardSize(length);
+        // Un tampon par fragment, et un par fragment de données pour sa version compressée
+        byte[][] shards = buffers.acquire(totalShards() + (compress ? dataShards : 0), size);
+        List<Future<Void>> writes = new ArrayList<>(totalShards());
+        try {
+            encode(chunk, length, shards);
+            for (int i = 0; i < totalShards(); i++) {
+                int index = i;
+                byte[] compressed = compress && index < dataShards ? shards[totalShards() + index] : null;
+                writes.add(executor.submit(() -> {
+                    writeShard(slaves.get(index), shardName(key, index), shards[index], size, compressed);
+                    return null;
+                }));
+            }
+            int stored = 0;
+            IOException failure = null;
+            for (Future<Void> write : writes) {
+                try {
+                    write.get();
+                    stored++;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Écriture des fragments de " + key + " interrompue.");
+                }
+            }
+            if (stored < dataShards) {
+                throw new IOException("seuls " + stored + " fragments sur " + totalShards() + " enregistrés : "
+                        + failure.getMessage(), failure);
+            }
+            if (stored < totalShards()) {
+                System.err.println("Morceau " + key + " enregistré sur " + stored + " fragments au lieu de "
+                        + totalShards() + " : " + failure.getMessage());
+            }
+        } finally {
+            releaseWhenDone(writes, shards, buffers, executor);
+        }
+    }
+
+    // Envoie les size premiers octets d'un fragment, compressés dans compressed s'il est
+    // donné et que le fragment y gagne
+    private static void writeShard(SlavePool slave, String name, byte[] shard, int size, byte[] compressed) throws IOException {
+        if (compressed != null) {
+            int compressedLength = ChunkCodec.compress(shard, size, compressed);
+            if (compressedLength >= 0) {
+                ChunkTransfers.put(Collections.singletonList(slave), name, SlaveProtocol.CODEC_DEFLATE, compressed, compressedLength);
+                ChunkCodec.record(size, compressedLength);
+                return;
+            }
+        }
+        ChunkTransfers.put(Collections.singletonList(slave), name, SlaveProtocol.CODEC_RAW, shard, size);
+        ChunkCodec.record(size, size);
+    }
+
+    // Lit un morceau de length octets dans target. Les k fragments de données sont demandés
+    // en parallèle ; un fragment en échec, ou une attente de plus de hedgeNanos, fait demander
+    // le fragment de parité suivant. Le morceau est reconstitué dès que k fragments sont
+    // arrivés, sans attendre les autres ; onCorrupt est appelé pour chaque fragment altéré.
+    // Une lecture déjà partie ne peut pas être interrompue : les tampons des fragments encore
+    // attendus sont rendus au pool à leur arrivée, en arrière-plan.
+    int read(List<SlavePool> slaves, String key, int length, byte[] target, ExecutorService executor,
+             long hedgeNanos, Runnable onCorrupt, ShardBuffers buffers) throws IOException {
+        int size = shardSize(length);
+        byte[][] storage = buffers.acquire(totalShards(), size);
+        byte[][] shards = new byte[totalShards()][];
+        CompletionService<byte[]> attempts = new ExecutorCompletionService<>(executor);
+        Map<Future<byte[]>, Integer> pending = new HashMap<>();
+        try {
+            int next = 0;
+            for (; next < dataShards; next++) {
+                pending.put(readShard(attempts, slaves.get(next), key, next, size, storage[next]), next);
+            }
+            int received = 0;
+            IOException failure = null;
+            while (received < dataShards) {
+                if (pending.size() + received < dataShards) {
+                    if (next == totalShards()) {
+                        throw new IOException("Lecture de " + key + " impossible : " + received + " fragments sur "
+                                + dataShards + " nécessaires (" + failure.getMessage() + ")", failure);
+                    }
+                    pending.put(readShard(attempts, slaves.get(next), key, next, size, storage[next]), next);
+                    next++;
+                    continue;
+                }
+                Future<byte[]> done = next < totalShards()
+                        ? attempts.poll(hedgeNanos, TimeUnit.NANOSECONDS) : attempts.take();
+                if (done == null) {
+                    // Fragment lent : demander aussi le fragment de parité suivant
+                    pending.put(readShard(attempts, slaves.get(next), key, next, size, storage[next]), next);
+                    next++;
+                    continue;
+                }
+                int index = pending.remove(done);
+                try {
+                    shards[index] = done.get();
+                    received++;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    if (cause instanceof ChunkCodec.CorruptChunkException) {
+                        System.err.println("Fragment altéré : " + cause.getMessage());
+                        onCorrupt.run();
+                    }
+                }
+            }
+            decode(shards, length, target);
+            return length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Lecture de " + key + " interrompue.");
+        } finally {
+            releaseWhenDone(pending.keySet(), storage, buffers, executor);
+        }
+    }
+
+    private Future<byte[]> readShard(CompletionService<byte[]> attempts, SlavePool slave, String key, int index,
+                                     int size, byte[] shard) {
+        return attempts.submit(() -> {
+            int count = ChunkTransfers.get(slave, shardName(key, index), shard);
+            if (count != size) {
+                throw new ChunkCodec.CorruptChunkException(slave.getAddress() + " : fragment " + index + " de "
+                        + key + " de " + count + " octets au lieu de " + size);
+            }
+            return shard;
+        });
+    }
+
+    // Relit en parallèle tous les fragments d'un morceau et le décode dans target. Renvoie
+    // false si un fragment présent diffère de celui que donne le codage du morceau décodé ;
+    // échoue si moins de k fragments sont lisibles.
+    boolean verify(List<SlavePool> slaves, String key, int length, byte[] target, ExecutorService executor,
+                   ShardBuffers buffers) throws IOException {
+        int size = shardSize(length);
+        // Un tampon par fragment lu, et un pour recalculer la parité
+        byte[][] storage = buffers.acquire(totalShards() + 1, size);
+        List<Future<byte[]>> reads = new ArrayList<>(totalShards());
+        try {
+            CompletionService<byte[]> attempts = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < totalShards(); i++) {
+                reads.add(readShard(attempts, slaves.get(i), key, i, size, storage[i]));
+            }
+            byte[][] shards = new byte[totalShards()][];
+            int found = 0;
+            for (int i = 0; i < totalShards(); i++) {
+                try {
+                    shards[i] = reads.get(i).get();
+                    found++;
+                } catch (ExecutionException e) {
+                    System.err.println("Fragment absent : " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Vérification de " + key + " interrompue.");
+                }
+            }
+            if (found < dataShards) {
+                throw new IOException("moins de " + dataShards + " fragments lisibles de " + key);
+            }
+            decode(shards, length, target);
+            byte[] expected = storage[totalShards()];
+            for (int i = 0; i < totalShards(); i++) {
+                if (shards[i] == null) {
+                    continue;
+                }
+                if (i < dataShards) {
+                    int count = dataCount(i, length);
+                    System.arraycopy(target, i * size, expected, 0, count);
+                    Arrays.fill(expected, count, size, (byte) 0);
+                } else {
+                    parity(i, target, length, expected);
+                }
+                if (!Arrays.equals(shards[i], 0, size, expected, 0, size)) {
+                    System.err.println("Fragment " + i + " de " + key + " incohérent avec les autres.");
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            releaseWhenDone(reads, storage, buffers, executor);
+        }
+    }
+
+    // Relit tous les fragments d'un morceau et réécrit ceux qui manquent ou sont altérés,
+    // recalculés à partir des autres en décodant le morceau dans chunk ; renvoie les indices
+    // des fragments réécrits
+    List<Integer> repair(List<SlavePool> slaves, String key, int length, byte[] chunk, boolean compress,
+                         ShardBuffers buffers) throws IOException {
+        int size = shardSize(length);
+        // Un tampon par fragment, et un pour compresser ceux qui sont réécrits
+        byte[][] storage = buffers.acquire(totalShards() + 1, size);
+        try {
+            byte[][] shards = new byte[totalShards()][];
+            List<Integer> damaged = new ArrayList<>();
+            for (int i = 0; i < totalShards(); i++) {
+                try {
+                    if (ChunkTransfers.get(slaves.get(i), shardName(key, i), storage[i]) != size) {
+                        throw new IOException(slaves.get(i).getAddress() + " : fragment " + i + " de " + key + " tronqué");
+                    }
+                    shards[i] = storage[i];
+                } catch (IOException e) {
+                    System.err.println("Fragment à réparer : " + e.getMessage());
+                    damaged.add(i);
+                }
+            }
+            if (damaged.isEmpty()) {
+                return damaged;
+            }
+            if (totalShards() - damaged.size() < dataShards) {
+                throw new IOException("moins de " + dataShards + " fragments sains de " + key);
+            }
+            decode(shards, length, chunk);
+            for (int index : damaged) {
+                byte[] shard = storage[index];
+                if (index < dataShards) {
+                    int count = dataCount(index, length);
+                    System.arraycopy(chunk, index * size, shard, 0, count);
+                    Arrays.fill(shard, count, size, (byte) 0);
+                } else {
+                    parity(index, chunk, length, shard);
+                }
+                writeShard(slaves.get(index), shardName(key, index), shard, size,
+                        compress && index < dataShards ? storage[totalShards()] : null);
+            }
+            return damaged;
+        } finally {
+            buffers.release(storage);
+        }
+    }
+
+    // Rend les tampons au pool une fois toutes les tâches terminées : tout de suite si elles
+    // le sont déjà, sinon depuis une tâche qui les attend
+    private static void releaseWhenDone(Collection<? extends Future<?>> tasks, byte[][] storage,
+                                        ShardBuffers buffers, ExecutorService executor) {
+        List<Future<?>> running = new ArrayList<>();
+        for (Future<?> task : tasks) {
+            if (!task.isDone()) {
+                running.add(task);
+            }
+        }
+        if (running.isEmpty()) {
+            buffers.release(storage);
+            return;
+        }
+        executor.execute(() -> {
+            for (Future<?> task : running) {
+                try {
+                    task.get();
+                } catch (ExecutionException | CancellationException e) {
+                    // erreur déjà traitée, ou fragment devenu inutile
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            buffers.release(storage);
+        });
+    }
+
+    // Tampons de fragments réutilisés d'un morceau à l'autre, en nombre borné : chaque
+    // opération prend d'un coup tous ceux dont elle a besoin et attend qu'ils soient libres
+    // plutôt que d'en allouer d'autres. Le sémaphore est équitable, pour qu'une écriture qui
+    // en demande beaucoup ne soit pas doublée indéfiniment par des lectures.
+    static final class ShardBuffers {
+        private final int count;
+        private final Semaphore available;
+        private final BlockingQueue<byte[]> free;
+
+        ShardBuffers(int count) {
+            this.count = Math.max(1, count);
+            available = new Semaphore(this.count, true);
+            free = new ArrayBlockingQueue<>(this.count);
+        }
+
+        // n tampons d'au moins size octets ; une demande plus grande que le pool attend
+        // qu'il soit entièrement libre
+        byte[][] acquire(int n, int size) throws InterruptedIOException {
+            try {
+                available.acquire(Math.min(n, count));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente d'un tampon de fragment interrompue.");
+            }
+            byte[][] buffers = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                byte[] buffer = free.poll();
+                // Un tampon trop petit (morceau d'un autre codage) est remplacé
+                buffers[i] = buffer != null && buffer.length >= size ? buffer : new byte[size];
+            }
+            return buffers;
+        }
+
+        void release(byte[][] buffers) {
+            for (byte[] buffer : buffers) {
+                free.offer(buffer);
+            }
+            available.release(Math.min(buffers.length, count));
+        }
+    }
+
+    // output[x] ^= coefficient * input[x] pour les length premiers octets
+    private static void multiplyAdd(byte coefficient, byte[] input, byte[] output, int length) {
+        multiplyAdd(coefficient, input, 0, output, 0, length);
+    }
+
+    private static void multiplyAdd(byte coefficient, byte[] input, int inputOffset, byte[] output, int outputOffset,
+                                    int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            for (int x = 0; x < length; x++) {
+                output[outputOffset + x] ^= input[inputOffset + x];
+            }
+            return;
+        }
+        byte[] row = MULTIPLY[coefficient & 0xff];
+        for (int x = 0; x < length; x++) {
+            output[outputOffset + x] ^= row[input[inputOffset + x] & 0xff];
+        }
+    }
+
+    private static byte multiply(byte a, byte b) {
+        return MULTIPLY[a & 0xff][b & 0xff];
+    }
+
+    private static byte power(int base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (base == 0) {
+            return 0;
+        }
+        return EXP[(LOG[base] * exponent) % 255];
+    }
+
+    // Inverse d'une matrice carrée par élimination de Gauss-Jordan
+    private static byte[][] invert(byte[][] source) {
+        int n = source.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int row = 0; row < n; row++) {
+            System.arraycopy(source[row], 0, work[row], 0, n);
+            work[row][n + row] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (pivot < n && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("matrice non inversible");
+            }
+            byte[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+
+            byte inverse = EXP[255 - LOG[work[column][column] & 0xff]];
+            for (int x = 0; x < 2 * n; x++) {
+                work[column][x] = multiply(work[column][x], inverse);
+            }
+            for (int row = 0; row < n; row++) {
+                if (row != column && work[row][column] != 0) {
+                    multiplyAdd(work[row][column], work[column], work[row], 2 * n);
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][];
+        for (int row = 0; row < n; row++) {
+            inverse[row] = Arrays.copyOfRange(work[row], n, 2 * n);
+        }
+        return inverse;
+    }
+}
@@ -1,54 +1,1271 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainServer {
-    private static String[] SERVER_SLAVES = new String[3];
+    // Adresses des esclaves ("hôte" ou "hôte:port"), dans l'ordre des clés SLAVEn_IP
+    private static String[] SERVER_SLAVES;
+    // Connexions persistantes vers chaque esclave, dans le même ordre que SERVER_SLAVES
+    private static SlavePool[] SLAVE_POOLS;
+    private static final Map<String, SlavePool> SLAVES_BY_ADDRESS = new HashMap<>();
+    // Adresses IP des machines des esclaves, seules autorisées à demander une réparation
+    private static final Set<InetAddress> SLAVE_HOSTS = new HashSet<>();
     private static int SLAVE_PORT;
     private static String MAIN_SERVER_IP;
     private static int MAIN_SERVER_PORT;
+    // Taille des morceaux répartis sur les esclaves (CHUNK_SIZE_MB dans config.txt)
+    private static int CHUNK_SIZE = 4 * 1024 * 1024;
+    // Nombre maximal de morceaux en mémoire, tous transferts confondus (MAX_CHUNK_BUFFERS)
+    private static int MAX_CHUNK_BUFFERS = 16;
+    // Nombre de répliques de chaque morceau (REPLICATION_FACTOR)
+    private static int REPLICATION_FACTOR = 1;
+    // Codage à effacement des morceaux (ERASURE_CODING) : "k+m" pour k fragments de données
+    // et m de parité au lieu de répliques entières, ou "none" ; null sans codage
+    private static int DATA_SHARDS;
+    private static int PARITY_SHARDS;
+    private static ErasureCoding ERASURE;
+    // Délai minimal avant de doubler une lecture lente sur une autre réplique (HEDGE_MIN_DELAY_MS)
+    private static long HEDGE_MIN_DELAY_MS = 20;
+    // Répertoire du catalogue des fichiers (CATALOG_PATH)
+    private static String CATALOG_PATH = "./catalog";
+    private static MetadataCatalog CATALOG;
+    // Budget du cache des morceaux les plus lus (CHUNK_CACHE_MB), hors du tas Java
+    private static long CHUNK_CACHE_SIZE = 256L * 1024 * 1024;
+    private static ChunkCache CHUNK_CACHE;
+    // Compression des morceaux envoyés aux esclaves (CHUNK_COMPRESSION) : "deflate" ou "none"
+    private static boolean COMPRESS_CHUNKS = true;
+    // Envois pouvant être repris, par identifiant, et durée de conservation d'un envoi
+    // interrompu (UPLOAD_SESSION_TIMEOUT_MIN)
+    private static final Map<String, UploadSession> UPLOAD_SESSIONS = new ConcurrentHashMap<>();
+    private static long UPLOAD_SESSION_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(60);
+    // Envois directs en cours, par identifiant : le client écrit lui-même les morceaux sur
+    // les esclaves (voir DirectUpload)
+    private static final Map<String, DirectUpload> DIRECT_UPLOADS = new ConcurrentHashMap<>();
+    // Taille en dessous de laquelle les fichiers d'un envoi groupé partagent leurs morceaux
+    // (PACK_FILE_MAX_KB)
+    private static long PACK_LIMIT = 512 * 1024;
+
+    // Tampons de morceaux réutilisés ; leur nombre borne la mémoire du serveur principal
+    private static final BlockingQueue<byte[]> CHUNK_BUFFERS = new LinkedBlockingQueue<>();
+    private static final AtomicInteger ALLOCATED_CHUNK_BUFFERS = new AtomicInteger();
+    // Tampons des fragments des morceaux codés : autant de fragments que MAX_CHUNK_BUFFERS
+    // morceaux, soit (k + m) / k fois la mémoire des tampons de morceaux
+    private static ErasureCoding.ShardBuffers SHARD_BUFFERS;
+
+    // Modèle d'exécution des connexions clientes (EXECUTION_MODE), nombre maximal de clients
+    // servis en même temps (MAIN_SERVER_MAX_CONNECTIONS) et file d'attente TCP (MAIN_SERVER_BACKLOG)
+    private static String EXECUTION_MODE = "pool";
+    private static int MAX_CONNECTIONS = 256;
+    private static int BACKLOG = 50;
+    // Frontal des connexions clientes (FRONT_END) : "threads" (un thread par client) ou
+    // "selector" (SELECTOR_THREADS threads non bloquants pour tous les clients)
+    private static String FRONT_END = "threads";
+    private static int SELECTOR_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Exécuteur partagé pour dialoguer avec tous les esclaves en même temps
+    private static ExecutorService SLAVE_EXECUTOR;
+    // Verrou qui fait passer une à une les réparations de répliques altérées
+    private static final Object REPAIR_LOCK = new Object();
 
     public static void main(String[] args) {
         // Charger la configuration
         loadConfig();
+        SLAVE_POOLS = new SlavePool[SERVER_SLAVES.length];
+        for (int i = 0; i < SERVER_SLAVES.length; i++) {
+            String[] address = SERVER_SLAVES[i].split(":");
+            int port = address.length > 1 ? Integer.parseInt(address[1]) : SLAVE_PORT;
+            SLAVE_POOLS[i] = new SlavePool(address[0], port);
+            SLAVES_BY_ADDRESS.put(SLAVE_POOLS[i].getAddress(), SLAVE_POOLS[i]);
+            try {
+                Collections.addAll(SLAVE_HOSTS, InetAddress.getAllByName(address[0]));
+            } catch (UnknownHostException e) {
+                System.err.println("Esclave " + SERVER_SLAVES[i] + " introuvable : " + e.getMessage());
+            }
+        }
+        if (DATA_SHARDS > 0) {
+            if (DATA_SHARDS + PARITY_SHARDS > SLAVE_POOLS.length) {
+                System.err.println("ERASURE_CODING=" + DATA_SHARDS + "+" + PARITY_SHARDS + " demande "
+                        + (DATA_SHARDS + PARITY_SHARDS) + " esclaves, " + SLAVE_POOLS.length + " configurés.");
+                return;
+            }
+            ERASURE = ErasureCoding.of(DATA_SHARDS, PARITY_SHARDS);
+        }
+        // Sans codage à effacement, seuls les morceaux codés d'avant en ont l'usage
+        SHARD_BUFFERS = new ErasureCoding.ShardBuffers(MAX_CHUNK_BUFFERS * (ERASURE != null ? ERASURE.totalShards() : 1));
+
+        try {
+            CATALOG = new MetadataCatalog(CATALOG_PATH);
+            System.out.println("Catalogue chargé : " + CATALOG.size() + " fichiers.");
+        } catch (IOException e) {
+            System.err.println("Impossible de charger le catalogue " + CATALOG_PATH + " : " + e.getMessage());
+            return;
+        }
+        CHUNK_CACHE = new ChunkCache(CHUNK_CACHE_SIZE, CHUNK_SIZE);
 
-        try (ServerSocket serverSocket = new ServerSocket(MAIN_SERVER_PORT, 50, InetAddress.getByName(MAIN_SERVER_IP))) {
-            System.out.println("Serveur principal en écoute sur le port " + MAIN_SERVER_PORT);
+        ConnectionDispatcher dispatcher = new ConnectionDispatcher("client", EXECUTION_MODE, MAX_CONNECTIONS);
+        SLAVE_EXECUTOR = dispatcher.isVirtual() ? ConnectionDispatcher.newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "slave-io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        registerGauges(dispatcher);
+
+        if (FRONT_END.equalsIgnoreCase("selector")) {
+            try {
+                SelectorFrontEnd frontEnd = new SelectorFrontEnd(SELECTOR_THREADS);
+                System.out.println("Serveur principal en écoute sur le port " + MAIN_SERVER_PORT
+                        + " (" + SLAVE_POOLS.length + " esclaves, morceaux de " + CHUNK_SIZE + " octets, "
+                        + SELECTOR_THREADS + " threads non bloquants)");
+                frontEnd.run(new InetSocketAddress(InetAddress.getByName(MAIN_SERVER_IP), MAIN_SERVER_PORT), BACKLOG);
+            } catch (IOException e) {
+                System.err.println("Erreur serveur principal: " + e.getMessage());
+            }
+            return;
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(MAIN_SERVER_PORT, BACKLOG, InetAddress.getByName(MAIN_SERVER_IP))) {
+            System.out.println("Serveur principal en écoute sur le port " + MAIN_SERVER_PORT
+                    + " (" + SLAVE_POOLS.length + " esclaves, morceaux de " + CHUNK_SIZE + " octets, "
+                    + (dispatcher.isVirtual() ? "threads virtuels" : "pool de threads") + ", "
+                    + MAX_CONNECTIONS + " clients simultanés au plus)");
 
             while (true) {
+                // Au-delà de MAX_CONNECTIONS clients, les suivants attendent dans la file TCP
+                dispatcher.awaitSlot();
                 Socket socket = serverSocket.accept();
-                new ClientHandler(socket).start();
+                dispatcher.dispatch(new ClientHandler(socket));
             }
         } catch (IOException e) {
             System.err.println("Erreur serveur principal: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private static void loadConfig() {
+        // Les esclaves sont triés selon le numéro de leur clé SLAVEn_IP
+        SortedMap<Integer, String> slaves = new TreeMap<>();
         try (BufferedReader reader = new BufferedReader(new FileReader("config.txt"))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                if (line.startsWith("SLAVE1_IP")) {
-                    SERVER_SLAVES[0] = line.split("=")[1].trim();
-                } else if (line.startsWith("SLAVE2_IP")) {
-                    SERVER_SLAVES[1] = line.split("=")[1].trim();
-                } else if (line.startsWith("SLAVE3_IP")) {
-                    SERVER_SLAVES[2] = line.split("=")[1].trim();
+                if (line.matches("SLAVE\\d+_IP\\s*=.*")) {
+                    int number = Integer.parseInt(line.substring("SLAVE".length(), line.indexOf("_IP")));
+                    slaves.put(number, line.split("=")[1].trim());
                 } else if (line.startsWith("SLAVE_PORT")) {
                     SLAVE_PORT = Integer.parseInt(line.split("=")[1].trim());
                 } else if (line.startsWith("MAIN_SERVER_IP")) {
                     MAIN_SERVER_IP = line.split("=")[1].trim();
                 } else if (line.startsWith("MAIN_SERVER_PORT")) {
                     MAIN_SERVER_PORT = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("CHUNK_SIZE_MB")) {
+                    CHUNK_SIZE = Integer.parseInt(line.split("=")[1].trim()) * 1024 * 1024;
+                } else if (line.startsWith("MAX_CHUNK_BUFFERS")) {
+                    MAX_CHUNK_BUFFERS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("REPLICATION_FACTOR")) {
+                    REPLICATION_FACTOR = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("ERASURE_CODING")) {
+                    String coding = line.split("=")[1].trim();
+                    if (!coding.equalsIgnoreCase("none")) {
+                        String[] shards = coding.split("\\+");
+                        DATA_SHARDS = Integer.parseInt(shards[0].trim());
+                        PARITY_SHARDS = Integer.parseInt(shards[1].trim());
+                    }
+                } else if (line.startsWith("HEDGE_MIN_DELAY_MS")) {
+                    HEDGE_MIN_DELAY_MS = Long.parseLong(line.split("=")[1].trim());
+                } else if (line.startsWith("EXECUTION_MODE")) {
+                    EXECUTION_MODE = line.split("=")[1].trim();
+                } else if (line.startsWith("MAIN_SERVER_MAX_CONNECTIONS")) {
+                    MAX_CONNECTIONS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("MAIN_SERVER_BACKLOG")) {
+                    BACKLOG = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("FRONT_END")) {
+                    FRONT_END = line.split("=")[1].trim();
+                } else if (line.startsWith("SELECTOR_THREADS")) {
+                    SELECTOR_THREADS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("UPLOAD_SESSION_TIMEOUT_MIN")) {
+                    UPLOAD_SESSION_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(Long.parseLong(line.split("=")[1].trim()));
+                } else if (line.startsWith("CHUNK_CACHE_MB")) {
+                    CHUNK_CACHE_SIZE = Long.parseLong(line.split("=")[1].trim()) * 1024 * 1024;
+                } else if (line.startsWith("PACK_FILE_MAX_KB")) {
+                    PACK_LIMIT = Long.parseLong(line.split("=")[1].trim()) * 1024;
+                } else if (line.startsWith("CHUNK_COMPRESSION")) {
+                    COMPRESS_CHUNKS = !line.split("=")[1].trim().equalsIgnoreCase("none");
+                } else if (line.startsWith("CATALOG_PATH")) {
+                    CATALOG_PATH = line.split("=")[1].trim();
                 }
             }
         } catch (IOException e) {
             System.err.println("Erreur lors du chargement de la configuration : " + e.getMessage());
         }
+        SERVER_SLAVES = slaves.values().toArray(new String[0]);
+    }
+
+    // Découpe d'un fichier envoyé en morceaux d'au plus CHUNK_SIZE octets, selon leur contenu
+    static ContentChunker newChunker(long fileSize) {
+        return new ContentChunker(fileSize, CHUNK_SIZE);
+    }
+
+    // Esclaves d'un morceau : le premier est dérivé de son empreinte, qui répartit les morceaux
+    // uniformément, et les répliques (ou les fragments) suivantes vont aux esclaves suivants
+    private static List<SlavePool> slavesFor(String key) {
+        int first = Math.floorMod(key.hashCode(), SLAVE_POOLS.length);
+        int replicas = ERASURE != null ? ERASURE.totalShards()
+                : Math.max(1, Math.min(REPLICATION_FACTOR, SLAVE_POOLS.length));
+        List<SlavePool> slaves = new ArrayList<>(replicas);
+        for (int r = 0; r < replicas; r++) {
+            slaves.add(SLAVE_POOLS[(first + r) % SLAVE_POOLS.length]);
+        }
+        return slaves;
+    }
+
+    // Profondeur du pipeline d'un transfert : un morceau en vol par esclave
+    static int pipelineDepth() {
+        return Math.max(1, Math.min(SLAVE_POOLS.length, MAX_CHUNK_BUFFERS / 2));
+    }
+
+    // Obtient un tampon de morceau ; bloque lorsque MAX_CHUNK_BUFFERS sont déjà utilisés,
+    // ce qui ralentit les transferts plutôt que d'épuiser la mémoire
+    private static byte[] acquireChunkBuffer() throws IOException {
+        byte[] buffer = tryAcquireChunkBuffer();
+        if (buffer != null) {
+            return buffer;
+        }
+        try {
+            return CHUNK_BUFFERS.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Attente d'un tampon de morceau interrompue.");
+        }
+    }
+
+    // Obtient un tampon seulement s'il est disponible immédiatement, sinon renvoie null
+    static byte[] tryAcquireChunkBuffer() {
+        byte[] buffer = CHUNK_BUFFERS.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (ALLOCATED_CHUNK_BUFFERS.incrementAndGet() <= MAX_CHUNK_BUFFERS) {
+            return new byte[CHUNK_SIZE];
+        }
+        ALLOCATED_CHUNK_BUFFERS.decrementAndGet();
+        return null;
+    }
+
+    static void releaseChunkBuffer(byte[] buffer) {
+        CHUNK_BUFFERS.offer(buffer);
+    }
+
+    // Exécute une tâche sur l'exécuteur des esclaves ; le résultat peut être attendu
+    // avec get() ou signalé par un rappel, sans bloquer l'appelant
+    static <T> CompletableFuture<T> submitAsync(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        SLAVE_EXECUTOR.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // Enregistre un morceau complet, sauf s'il est déjà sur les esclaves ; le morceau reste
+    // épinglé jusqu'à la fin de l'envoi ou son abandon. Le tampon est rendu au pool à la fin.
+    static CompletableFuture<MetadataCatalog.ChunkRef> writeChunk(byte[] buffer, int length) {
+        return submitAsync(new ChunkWriter(buffer, length));
+    }
+
+    // Lit un morceau dans le tampon donné, qui appartient ensuite au résultat
+    static CompletableFuture<ChunkData> readChunk(MetadataCatalog.ChunkRef chunk, byte[] buffer) {
+        return submitAsync(new ChunkReader(chunk, buffer));
+    }
+
+    static MetadataCatalog.FileEntry findFile(String name) {
+        return CATALOG.get(name);
+    }
+
+    // Reprend l'envoi uploadId s'il existe pour ce fichier et n'est pas déjà en cours,
+    // sinon commence un nouvel envoi qui pourra être repris
+    static UploadSession openUpload(String filename, long fileSize, String uploadId) {
+        expireUploads();
+        UploadSession session = UPLOAD_SESSIONS.get(uploadId);
+        if (session != null && session.filename.equals(filename) && session.fileSize == fileSize && session.resume()) {
+            return session;
+        }
+        session = new UploadSession(UUID.randomUUID().toString(), filename, fileSize);
+        UPLOAD_SESSIONS.put(session.id, session);
+        return session;
+    }
+
+    // Abandonne, hors du thread appelant, les envois interrompus depuis trop longtemps
+    private static void expireUploads() {
+        for (UploadSession session : UPLOAD_SESSIONS.values()) {
+            if (session.isExpired(UPLOAD_SESSION_TIMEOUT_MS) && UPLOAD_SESSIONS.remove(session.id, session)) {
+                submitAsync(() -> {
+                    discardUpload(session);
+                    return null;
+                });
+            }
+        }
+        for (DirectUpload upload : DIRECT_UPLOADS.values()) {
+            if (upload.isExpired(UPLOAD_SESSION_TIMEOUT_MS) && DIRECT_UPLOADS.remove(upload.id, upload)) {
+                submitAsync(() -> {
+                    discardDirectUpload(upload);
+                    return null;
+                });
+            }
+        }
+    }
+
+    // Enregistre dans le catalogue un fichier dont tous les morceaux sont sur les esclaves,
+    // puis supprime les morceaux de l'ancienne version que plus aucun fichier n'utilise
+    static String finishUpload(UploadSession session) throws IOException {
+        if (session.id != null) {
+            UPLOAD_SESSIONS.remove(session.id);
+        }
+        List<MetadataCatalog.ChunkRef> orphans = new ArrayList<>();
+        try {
+            orphans.addAll(CATALOG.put(new MetadataCatalog.FileEntry(session.filename, session.fileSize,
+                    session.checksum.getValue(), System.currentTimeMillis(), session.chunks)));
+        } finally {
+            orphans.addAll(CATALOG.unpin(keysOf(session.chunks)));
+            deleteOrphans(orphans);
+        }
+        return "Fichier envoyé et partitionné.";
+    }
+
+    // Lit la table d'un envoi groupé ; ses octets suivent, flux après flux
+    static BatchUpload readBatch(DataInputStream dataInputStream) throws IOException {
+        return BatchUpload.readFrom(dataInputStream, PACK_LIMIT);
+    }
+
+    // Enregistre d'un coup tous les fichiers d'un envoi groupé dont tous les flux sont reçus
+    static String finishBatch(BatchUpload batch) throws IOException {
+        List<MetadataCatalog.ChunkRef> orphans = new ArrayList<>();
+        try {
+            orphans.addAll(CATALOG.putAll(batch.entries(System.currentTimeMillis())));
+        } finally {
+            for (UploadSession segment : batch.segments) {
+                orphans.addAll(CATALOG.unpin(keysOf(segment.chunks)));
+            }
+            deleteOrphans(orphans);
+        }
+        return batch.fileCount() + " fichiers envoyés.";
+    }
+
+    // Envoi groupé interrompu pendant la réception de current : rien n'entre dans le
+    // catalogue et les morceaux de tous ses flux sont libérés
+    static void interruptBatch(BatchUpload batch, UploadSession current, Collection<? extends Future<MetadataCatalog.ChunkRef>> inFlight) {
+        if (current != null) {
+            interruptUpload(current, inFlight);
+        }
+        for (UploadSession segment : batch.segments) {
+            discardUpload(segment);
+        }
+    }
+
+    // Envoi interrompu : attend les morceaux encore en vol, puis garde l'envoi pour une
+    // reprise ou, s'il ne peut pas être repris, libère tous ses morceaux
+    static void interruptUpload(UploadSession session, Collection<? extends Future<MetadataCatalog.ChunkRef>> inFlight) {
+        for (Future<MetadataCatalog.ChunkRef> write : inFlight) {
+            try {
+                session.chunks.add(write.get());
+            } catch (ExecutionException | CancellationException e) {
+                // l'envoi en échec a déjà retiré son épingle
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (session.id != null && session.isConsistent() && !Thread.currentThread().isInterrupted()) {
+            session.suspend();
+        } else {
+            if (session.id != null) {
+                UPLOAD_SESSIONS.remove(session.id);
+            }
+            discardUpload(session);
+        }
+    }
+
+    // Retire les épingles d'un envoi abandonné et supprime les morceaux que personne n'utilise ;
+    // l'envoi n'a plus de morceaux ensuite, un second appel est sans effet
+    private static void discardUpload(UploadSession session) {
+        try {
+            List<MetadataCatalog.ChunkRef> orphans = CATALOG.unpin(keysOf(session.chunks));
+            session.chunks.clear();
+            deleteOrphans(orphans);
+        } catch (IOException e) {
+            System.err.println("Erreur lors du nettoyage d'un envoi interrompu : " + e.getMessage());
+        }
+    }
+
+    // Lot suivant d'un envoi direct : confirme les morceaux écrits par le client depuis le
+    // lot précédent et épingle les nouveaux. La réponse donne l'identifiant de l'envoi puis,
+    // pour chaque morceau, s'il est déjà enregistré (1) ou à écrire (0), son nombre de
+    // fragments de données (int, 0 pour un morceau répliqué) et les adresses de ses répliques
+    // ou de ses fragments (int, puis UTF), dans l'ordre de la chaîne pour un morceau à écrire.
+    static void allocateChunks(DirectUpload.Allocation request, DataOutputStream dataOutputStream) throws IOException {
+        expireUploads();
+        DirectUpload upload;
+        if (request.uploadId.isEmpty()) {
+            upload = new DirectUpload(UUID.randomUUID().toString());
+            DIRECT_UPLOADS.put(upload.id, upload);
+        } else {
+            upload = DIRECT_UPLOADS.get(request.uploadId);
+            if (upload == null) {
+                throw new IOException("Envoi direct inconnu ou expiré : " + request.uploadId);
+            }
+        }
+
+        int first;
+        synchronized (upload) {
+            if (upload.closed) {
+                throw new IOException("Envoi direct inconnu ou expiré : " + upload.id);
+            }
+            first = upload.chunks.size();
+            try {
+                for (int i = 0; i < request.keys.size(); i++) {
+                    if (!ChunkCodec.isKey(request.keys.get(i)) || request.lengths[i] <= 0 || request.lengths[i] > CHUNK_SIZE) {
+                        throw new IOException("Morceau invalide : " + request.keys.get(i) + " (" + request.lengths[i] + " octets)");
+                    }
+                }
+                confirmChunks(upload, request.confirmations);
+                for (int i = 0; i < request.keys.size(); i++) {
+                    String key = request.keys.get(i);
+                    MetadataCatalog.ChunkRef ref = CATALOG.pinShared(key);
+                    if (ref == null) {
+                        List<String> replicas = new ArrayList<>();
+                        for (SlavePool slave : slavesFor(key)) {
+                            replicas.add(slave.getAddress());
+                        }
+                        ref = new MetadataCatalog.ChunkRef(key, request.lengths[i],
+                                ERASURE != null ? ERASURE.dataShards : 0, replicas);
+                        upload.planned.set(upload.chunks.size());
+                    }
+                    upload.chunks.add(ref);
+                }
+            } catch (IOException e) {
+                DIRECT_UPLOADS.remove(upload.id);
+                discardDirectUpload(upload);
+                throw e;
+            }
+            upload.touch();
+        }
+
+        dataOutputStream.writeUTF(upload.id);
+        for (int i = first; i < first + request.keys.size(); i++) {
+            MetadataCatalog.ChunkRef ref = upload.chunks.get(i);
+            dataOutputStream.writeByte(upload.planned.get(i) ? 0 : 1);
+            dataOutputStream.writeInt(ref.dataShards);
+            dataOutputStream.writeInt(ref.locations.size());
+            for (String location : ref.locations) {
+                dataOutputStream.writeUTF(location);
+            }
+        }
+    }
+
+    // Termine un envoi direct : une fois tous ses morceaux confirmés, enregistre le fichier
+    // dans le catalogue, puis supprime les morceaux de l'ancienne version que plus aucun
+    // fichier n'utilise
+    static String commitDirectUpload(DirectUpload.Commit request) throws IOException {
+        DirectUpload upload = DIRECT_UPLOADS.remove(request.uploadId);
+        if (upload == null) {
+            throw new IOException("Envoi direct inconnu ou expiré : " + request.uploadId);
+        }
+        synchronized (upload) {
+            if (upload.closed) {
+                throw new IOException("Envoi direct inconnu ou expiré : " + upload.id);
+            }
+            try {
+                confirmChunks(upload, request.confirmations);
+                if (!upload.planned.isEmpty()) {
+                    throw new IOException(upload.planned.cardinality() + " morceaux de " + request.filename
+                            + " n'ont pas été écrits.");
+                }
+                long covered = 0;
+                for (MetadataCatalog.ChunkRef chunk : upload.chunks) {
+                    covered += chunk.length;
+                }
+                if (covered != request.fileSize) {
+                    throw new IOException("Les morceaux de " + request.filename + " couvrent " + covered
+                            + " octets au lieu de " + request.fileSize + ".");
+                }
+            } catch (IOException e) {
+                discardDirectUpload(upload);
+                throw e;
+            }
+
+            upload.closed = true;
+            List<MetadataCatalog.ChunkRef> orphans = new ArrayList<>();
+            try {
+                orphans.addAll(CATALOG.put(new MetadataCatalog.FileEntry(request.filename, request.fileSize,
+                        request.checksum, System.currentTimeMillis(), upload.chunks)));
+            } finally {
+                orphans.addAll(CATALOG.unpin(keysOf(upload.chunks)));
+                deleteOrphans(orphans);
+            }
+        }
+        return "Fichier envoyé et partitionné.";
+    }
+
+    // Enregistre l'emplacement des morceaux prévus que le client a écrits ; ils peuvent
+    // aussitôt servir aux autres envois. Rien n'est changé si une confirmation est invalide.
+    private static void confirmChunks(DirectUpload upload, Map<Integer, List<String>> confirmations) throws IOException {
+        for (Map.Entry<Integer, List<String>> confirmation : confirmations.entrySet()) {
+            int index = confirmation.getKey();
+            if (index < 0 || !upload.planned.get(index)) {
+                throw new IOException("Morceau " + index + " non prévu pour l'envoi " + upload.id);
+            }
+            // Seuls les esclaves donnés par "allocate" pour ce morceau peuvent être confirmés,
+            // chacun une fois. Le fragment i d'un morceau codé est chez le i-ème esclave
+            // prévu : le client confirme l'emplacement entier dès que k fragments sont écrits.
+            MetadataCatalog.ChunkRef planned = upload.chunks.get(index);
+            List<String> locations = confirmation.getValue();
+            boolean expected = planned.dataShards > 0 ? planned.locations.equals(locations)
+                    : planned.locations.containsAll(locations) && new HashSet<>(locations).size() == locations.size();
+            if (!expected) {
+                throw new IOException("Morceau " + index + " confirmé sur " + locations
+                        + " au lieu de ses esclaves prévus " + planned.locations);
+            }
+        }
+        verifyConfirmed(upload, confirmations);
+        for (Map.Entry<Integer, List<String>> confirmation : confirmations.entrySet()) {
+            int index = confirmation.getKey();
+            MetadataCatalog.ChunkRef planned = upload.chunks.get(index);
+            MetadataCatalog.ChunkRef stored = new MetadataCatalog.ChunkRef(planned.key, planned.length,
+                    planned.dataShards, confirmation.getValue());
+            upload.chunks.set(index, stored);
+            upload.planned.clear(index);
+            CATALOG.stored(stored);
+        }
+    }
+
+    // Demande aux esclaves confirmés s'ils ont bien enregistré les parties des morceaux, avec
+    // leur taille prévue : un client ne peut pas faire passer pour écrit un morceau qu'il n'a
+    // pas envoyé, que les envois suivants partageraient. Chaque réplique confirmée doit avoir
+    // le morceau entier. Un fragment ne peut pas être comparé seul à la clé : les fragments
+    // d'un morceau codé sont relus et décodés par le serveur principal (voir isGenuine).
+    private static void verifyConfirmed(DirectUpload upload, Map<Integer, List<String>> confirmations) throws IOException {
+        List<Integer> indices = new ArrayList<>();
+        List<Callable<Boolean>> checks = new ArrayList<>();
+        for (Map.Entry<Integer, List<String>> confirmation : confirmations.entrySet()) {
+            MetadataCatalog.ChunkRef planned = upload.chunks.get(confirmation.getKey());
+            MetadataCatalog.ChunkRef confirmed = new MetadataCatalog.ChunkRef(planned.key, planned.length,
+                    planned.dataShards, confirmation.getValue());
+            if (planned.dataShards > 0) {
+                indices.add(confirmation.getKey());
+                checks.add(() -> isGenuine(confirmed));
+                continue;
+            }
+            for (String location : confirmed.locations) {
+                indices.add(confirmation.getKey());
+                checks.add(() -> {
+                    try {
+                        return ChunkTransfers.stat(slaveAt(location), confirmed.key) == confirmed.length;
+                    } catch (IOException e) {
+                        System.err.println("Partie confirmée introuvable : " + e.getMessage());
+                        return false;
+                    }
+                });
+            }
+        }
+
+        Map<Integer, Integer> verified = new HashMap<>();
+        List<Boolean> results = fanOut(checks);
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i)) {
+                verified.merge(indices.get(i), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<Integer, List<String>> confirmation : confirmations.entrySet()) {
+            MetadataCatalog.ChunkRef planned = upload.chunks.get(confirmation.getKey());
+            int required = planned.dataShards > 0 ? 1 : confirmation.getValue().size();
+            int found = verified.getOrDefault(confirmation.getKey(), 0);
+            if (required == 0 || found < required) {
+                throw new IOException("Morceau " + confirmation.getKey() + " absent, incomplet ou altéré sur les esclaves "
+                        + confirmation.getValue() + " confirmés (" + found + " parties conformes).");
+            }
+        }
+    }
+
+    // Un morceau codé écrit par un client est-il bien celui de sa clé ? Tous ses fragments sont
+    // relus ; le morceau décodé doit avoir la clé pour empreinte, et chaque fragment présent
+    // doit être celui que donne son codage : un fragment de parité faux ne serait sinon
+    // découvert qu'à la première lecture dégradée.
+    private static boolean isGenuine(MetadataCatalog.ChunkRef chunk) throws IOException {
+        byte[] buffer = acquireChunkBuffer();
+        try {
+            return codingOf(chunk).verify(slavesAt(chunk.locations), chunk.key, chunk.length, buffer, SLAVE_EXECUTOR,
+                    SHARD_BUFFERS) && ChunkCodec.fingerprint(buffer, chunk.length).equals(chunk.key);
+        } catch (IOException e) {
+            System.err.println("Fragments confirmés illisibles : " + e.getMessage());
+            return false;
+        } finally {
+            releaseChunkBuffer(buffer);
+        }
+    }
+
+    // Abandonne un envoi direct : retire ses épingles et supprime les morceaux que personne
+    // n'utilise, y compris ceux que le client a pu écrire sans les confirmer
+    private static void discardDirectUpload(DirectUpload upload) {
+        synchronized (upload) {
+            if (upload.closed) {
+                return;
+            }
+            upload.closed = true;
+            List<MetadataCatalog.ChunkRef> known = new ArrayList<>();
+            List<MetadataCatalog.ChunkRef> planned = new ArrayList<>();
+            for (int i = 0; i < upload.chunks.size(); i++) {
+                (upload.planned.get(i) ? planned : known).add(upload.chunks.get(i));
+            }
+            try {
+                List<MetadataCatalog.ChunkRef> orphans = CATALOG.unpin(keysOf(known));
+                orphans.addAll(CATALOG.unpinPlanned(planned));
+                deleteOrphans(orphans);
+            } catch (IOException e) {
+                System.err.println("Erreur lors du nettoyage d'un envoi direct abandonné : " + e.getMessage());
+            }
+        }
+    }
+
+    // Portions des morceaux qui couvrent les octets [offset, offset + length) d'un fichier
+    static List<ChunkSlice> slicesOf(MetadataCatalog.FileEntry entry, long offset, long length) {
+        List<ChunkSlice> slices = new ArrayList<>();
+        // Positions dans la suite des morceaux, où le fichier commence à entry.offset
+        long start = entry.offset + offset;
+        long end = entry.offset + Math.min(entry.size, offset + length);
+        long chunkStart = 0;
+        for (MetadataCatalog.ChunkRef chunk : entry.chunks) {
+            long chunkEnd = chunkStart + chunk.length;
+            if (chunkEnd > start && chunkStart < end) {
+                slices.add(new ChunkSlice(chunk, (int) (Math.max(start, chunkStart) - chunkStart),
+                        (int) (Math.min(end, chunkEnd) - chunkStart)));
+            }
+            chunkStart = chunkEnd;
+        }
+        return slices;
+    }
+
+    // Lit une liste de noms : nombre (int), puis chaque nom (UTF)
+    static List<String> readNames(DataInputStream dataInputStream) throws IOException {
+        int count = dataInputStream.readInt();
+        if (count < 0 || count > BatchUpload.MAX_FILES) {
+            throw new IOException("Requête groupée de " + count + " fichiers refusée (" + BatchUpload.MAX_FILES + " au plus).");
+        }
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(dataInputStream.readUTF());
+        }
+        return names;
+    }
+
+    // En-tête de la réponse à un téléchargement groupé : nombre de fichiers (int), puis la
+    // taille de chacun (long, -1 s'il n'existe pas) ; les octets des fichiers trouvés suivent
+    static byte[] batchHeader(List<MetadataCatalog.FileEntry> entries) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(4 + 8 * entries.size());
+        DataOutputStream out = new DataOutputStream(header);
+        try {
+            out.writeInt(entries.size());
+            for (MetadataCatalog.FileEntry entry : entries) {
+                out.writeLong(entry == null ? -1 : entry.size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // impossible en mémoire
+        }
+        return header.toByteArray();
+    }
+
+    // Portions des morceaux de plusieurs fichiers, à la suite. Les fichiers voisins dans un
+    // morceau commun, envoyés puis demandés dans le même ordre, ne donnent qu'une portion :
+    // le morceau n'est lu qu'une fois pour eux tous.
+    static List<ChunkSlice> batchSlices(List<MetadataCatalog.FileEntry> entries) {
+        List<ChunkSlice> slices = new ArrayList<>();
+        for (MetadataCatalog.FileEntry entry : entries) {
+            if (entry == null) {
+                continue;
+            }
+            for (ChunkSlice slice : slicesOf(entry, 0, entry.size)) {
+                ChunkSlice last = slices.isEmpty() ? null : slices.get(slices.size() - 1);
+                if (last != null && last.chunk.key.equals(slice.chunk.key) && last.to == slice.from) {
+                    slices.set(slices.size() - 1, new ChunkSlice(last.chunk, last.from, slice.to));
+                } else {
+                    slices.add(slice);
+                }
+            }
+        }
+        return slices;
+    }
+
+    private static List<String> keysOf(List<MetadataCatalog.ChunkRef> chunks) {
+        List<String> keys = new ArrayList<>(chunks.size());
+        for (MetadataCatalog.ChunkRef chunk : chunks) {
+            keys.add(chunk.key);
+        }
+        return keys;
+    }
+
+    // Supprime des esclaves des morceaux orphelins puis les oublie dans le catalogue ;
+    // renvoie false si un esclave n'a pas pu supprimer les siens
+    private static boolean deleteOrphans(List<MetadataCatalog.ChunkRef> orphans) throws IOException {
+        if (orphans.isEmpty()) {
+            return true;
+        }
+        for (MetadataCatalog.ChunkRef orphan : orphans) {
+            CHUNK_CACHE.invalidate(orphan.key);
+        }
+        try {
+            return deleteChunks(orphans);
+        } finally {
+            CATALOG.forget(orphans);
+        }
+    }
+
+    // Jauges lues par l'action "stats", en plus des compteurs et des durées de requêtes
+    private static void registerGauges(ConnectionDispatcher dispatcher) {
+        if (!FRONT_END.equalsIgnoreCase("selector")) {
+            // Le frontal non bloquant compte lui-même ses connexions
+            Metrics.gauge("connections.active", dispatcher::activeConnections);
+            Metrics.gauge("connections.queued", dispatcher::queuedConnections);
+        }
+        Metrics.gauge("chunk_buffers.in_use", () -> ALLOCATED_CHUNK_BUFFERS.get() - CHUNK_BUFFERS.size());
+        Metrics.gauge("upload_sessions", UPLOAD_SESSIONS::size);
+        Metrics.gauge("direct_uploads", DIRECT_UPLOADS::size);
+        Metrics.gauge("catalog.files", () -> CATALOG.size());
+        for (SlavePool slave : SLAVE_POOLS) {
+            Metrics.gauge("rpc." + slave.getAddress() + ".in_flight", slave::inFlight);
+            Metrics.gauge("rpc." + slave.getAddress() + ".average_us", () -> slave.averageNanos() / 1000);
+        }
+        if (SLAVE_EXECUTOR instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) SLAVE_EXECUTOR;
+            Metrics.gauge("slave_executor.active", pool::getActiveCount);
+        }
+    }
+
+    // Actions courtes, sans transfert de fichier, communes aux deux frontaux ; peer est
+    // l'adresse de la machine qui les demande
+    static void handleControl(String action, InetAddress peer, DataInputStream dataInputStream,
+                              DataOutputStream dataOutputStream) throws IOException {
+        if (action.equals("delete")) {
+            ClientHandler.handleDeleteFile(dataInputStream, dataOutputStream);
+        } else if (action.equals("mdelete")) {
+            ClientHandler.handleDeleteFiles(dataInputStream, dataOutputStream);
+        } else if (action.equals("list")) {
+            ClientHandler.handleListFiles(dataOutputStream);
+        } else if (action.equals("stat")) {
+            ClientHandler.handleStatFile(dataInputStream, dataOutputStream);
+        } else if (action.equals("locate")) {
+            ClientHandler.handleLocateFile(dataInputStream, dataOutputStream);
+        } else if (action.equals("allocate")) {
+            allocateChunks(DirectUpload.Allocation.readFrom(dataInputStream), dataOutputStream);
+        } else if (action.equals("commit")) {
+            dataOutputStream.writeUTF(commitDirectUpload(DirectUpload.Commit.readFrom(dataInputStream)));
+        } else if (action.equals("stats")) {
+            ClientHandler.handleStats(dataOutputStream);
+        } else if (action.equals("repair")) {
+            // Signalement d'un esclave dont la vérification de fond a trouvé une partie altérée,
+            // morceau entier ou fragment. Une réparation relit toutes les répliques : seuls les
+            // esclaves de la configuration peuvent la demander.
+            String key = ErasureCoding.keyOf(dataInputStream.readUTF());
+            if (!SLAVE_HOSTS.contains(peer)) {
+                throw new IOException("Réparation de " + key + " refusée à " + peer.getHostAddress()
+                        + ", qui n'est pas un esclave.");
+            }
+            SLAVE_EXECUTOR.execute(() -> repairQuietly(key));
+            dataOutputStream.writeUTF("Réparation de " + key + " programmée.");
+        } else {
+            throw new IOException("Action inconnue : " + action);
+        }
+    }
+
+    private static void repairQuietly(String key) {
+        try {
+            System.out.println(repairChunk(key));
+        } catch (IOException e) {
+            System.err.println("Échec de la réparation de " + key + " : " + e.getMessage());
+        }
+    }
+
+    // Relit toutes les répliques d'un morceau et réécrit celles qui manquent ou sont altérées
+    // à partir d'une réplique saine. Les réparations passent une à une : elles sont rares et
+    // ne doivent pas accaparer les tampons de morceaux.
+    private static String repairChunk(String key) throws IOException {
+        synchronized (REPAIR_LOCK) {
+            MetadataCatalog.ChunkRef chunk = CATALOG.pin(key);
+            try {
+                if (chunk == null) {
+                    CATALOG.notStored(key);
+                    return "Morceau " + key + " inconnu du catalogue, rien à réparer.";
+                }
+                if (chunk.dataShards > 0) {
+                    byte[] buffer = acquireChunkBuffer();
+                    try {
+                        List<Integer> rewritten = codingOf(chunk).repair(slavesAt(chunk.locations), key, chunk.length,
+                                buffer, COMPRESS_CHUNKS, SHARD_BUFFERS);
+                        return rewritten.isEmpty() ? "Tous les fragments de " + key + " sont sains."
+                                : "Fragments " + rewritten + " de " + key + " réécrits.";
+                    } finally {
+                        releaseChunkBuffer(buffer);
+                    }
+                }
+                byte[] healthy = acquireChunkBuffer();
+                byte[] scratch = acquireChunkBuffer();
+                try {
+                    // Le premier exemplaire sain est gardé dans healthy, les suivants sont
+                    // seulement vérifiés dans scratch
+                    ChunkData source = null;
+                    List<SlavePool> damaged = new ArrayList<>();
+                    for (String location : chunk.locations) {
+                        SlavePool slave = slaveAt(location);
+                        try {
+                            ChunkData data = ChunkReader.readFrom(slave, key, source == null ? healthy : scratch);
+                            if (source == null) {
+                                source = data;
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Réplique à réparer : " + e.getMessage());
+                            damaged.add(slave);
+                        }
+                    }
+                    if (damaged.isEmpty()) {
+                        return "Toutes les répliques de " + key + " sont saines.";
+                    }
+                    if (source == null) {
+                        throw new IOException("aucune réplique saine de " + key);
+                    }
+                    MetadataCatalog.ChunkRef repaired = new ChunkWriter(source.buffer, source.length).store(key, damaged);
+                    return "Morceau " + key + " réécrit sur " + repaired.locations + ".";
+                } finally {
+                    releaseChunkBuffer(healthy);
+                    releaseChunkBuffer(scratch);
+                }
+            } finally {
+                deleteOrphans(CATALOG.unpin(Collections.singletonList(key)));
+            }
+        }
+    }
+
+    // Exécute les requêtes vers les esclaves en parallèle et renvoie leurs résultats dans l'ordre
+    private static <T> List<T> fanOut(List<Callable<T>> requests) throws IOException {
+        List<Future<T>> futures = new ArrayList<>(requests.size());
+        for (Callable<T> request : requests) {
+            futures.add(SLAVE_EXECUTOR.submit(request));
+        }
+        return awaitAll(futures);
+    }
+
+    // Attend la fin de toutes les tâches ; la première erreur est relancée en IOException
+    private static <T> List<T> awaitAll(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<>(futures.size());
+        IOException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (failure == null) {
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente des serveurs esclaves interrompue.");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    // Esclave correspondant à une adresse enregistrée dans le catalogue
+    private static SlavePool slaveAt(String location) throws IOException {
+        SlavePool slave = SLAVES_BY_ADDRESS.get(location);
+        if (slave == null) {
+            throw new IOException("Esclave inconnu dans la configuration : " + location);
+        }
+        return slave;
+    }
+
+    // Esclaves d'un morceau codé, dans l'ordre de ses fragments
+    private static List<SlavePool> slavesAt(List<String> locations) throws IOException {
+        List<SlavePool> slaves = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            slaves.add(slaveAt(location));
+        }
+        return slaves;
+    }
+
+    // Codage avec lequel un morceau a été écrit, qui peut différer de ERASURE_CODING actuel
+    private static ErasureCoding codingOf(MetadataCatalog.ChunkRef chunk) {
+        return ErasureCoding.of(chunk.dataShards, chunk.locations.size() - chunk.dataShards);
+    }
+
+    // Répliques existantes de l'esclave le moins chargé au plus chargé
+    private static List<SlavePool> rankReplicas(List<String> locations) throws IOException {
+        List<SlavePool> replicas = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            SlavePool slave = SLAVES_BY_ADDRESS.get(location);
+            if (slave != null) {
+                replicas.add(slave);
+            }
+        }
+        if (replicas.isEmpty()) {
+            throw new IOException("Aucune réplique joignable parmi " + locations);
+        }
+        replicas.sort(Comparator.comparingDouble(SlavePool::loadScore));
+        return replicas;
+    }
+
+    // Supprime des morceaux sur leurs esclaves : les requêtes destinées à un même esclave
+    // sont envoyées à la suite sur une seule connexion, et tous les esclaves en parallèle.
+    // Renvoie false si un esclave n'a pas pu supprimer ses morceaux.
+    private static boolean deleteChunks(List<MetadataCatalog.ChunkRef> chunks) throws IOException {
+        Map<String, List<String>> keysBySlave = new HashMap<>();
+        for (MetadataCatalog.ChunkRef chunk : chunks) {
+            List<String> names = chunk.partNames();
+            for (int i = 0; i < names.size(); i++) {
+                keysBySlave.computeIfAbsent(chunk.locations.get(i), slave -> new ArrayList<>()).add(names.get(i));
+            }
+        }
+
+        List<Callable<Boolean>> requests = new ArrayList<>();
+        for (Map.Entry<String, List<String>> slaveKeys : keysBySlave.entrySet()) {
+            requests.add(() -> deleteOnSlave(slaveKeys.getKey(), slaveKeys.getValue()));
+        }
+
+        boolean allDeleted = true;
+        for (boolean deleted : fanOut(requests)) {
+            allDeleted &= deleted;
+        }
+        return allDeleted;
+    }
+
+    // Métriques d'un esclave ; vide s'il ne répond pas
+    private static Map<String, Long> statsOfSlave(SlavePool slave) {
+        try {
+            return slave.execute("stats", connection -> {
+                int requestId = connection.request(SlaveProtocol.OP_STATS);
+                if (connection.awaitResponse(requestId) != SlaveProtocol.STATUS_OK) {
+                    throw new IOException("statistiques refusées");
+                }
+                int count = connection.in.readInt();
+                Map<String, Long> stats = new TreeMap<>();
+                for (int i = 0; i < count; i++) {
+                    stats.put(connection.in.readUTF(), connection.in.readLong());
+                }
+                return stats;
+            });
+        } catch (IOException e) {
+            System.err.println("Statistiques du serveur esclave " + slave.getAddress() + " indisponibles : " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    private static boolean deleteOnSlave(String location, List<String> keys) {
+        try {
+            SlavePool slave = slaveAt(location);
+            return slave.execute("delete", connection -> {
+                int[] requestIds = new int[keys.size()];
+                for (int i = 0; i < keys.size(); i++) {
+                    requestIds[i] = connection.request(SlaveProtocol.OP_DELETE);
+                    connection.out.writeUTF(keys.get(i));
+                }
+                boolean deleted = true;
+                for (int i = 0; i < keys.size(); i++) {
+                    byte status = connection.awaitResponse(requestIds[i]);
+                    if (status == SlaveProtocol.STATUS_NOT_FOUND) {
+                        System.out.println("Partie déjà absente sur le serveur esclave " + location + " : " + keys.get(i));
+                    } else if (status != SlaveProtocol.STATUS_OK) {
+                        deleted = false;
+                    }
+                }
+                return deleted;
+            });
+        } catch (IOException e) {
+            System.err.println("Erreur de communication avec le serveur esclave " + location + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Attend des lectures abandonnées et rend au pool les tampons de celles qui ont abouti
+    private static void releaseChunks(Collection<Future<ChunkData>> reads) {
+        for (Future<ChunkData> read : reads) {
+            try {
+                releaseChunkBuffer(read.get().buffer);
+            } catch (ExecutionException | CancellationException e) {
+                // la lecture en échec a déjà rendu ses tampons
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Attend la fin des tâches sans relayer leurs erreurs, déjà traitées par l'appelant
+    private static void awaitQuietly(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException | CancellationException e) {
+                // erreur ignorée
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Tâche qui enregistre un morceau complet sur ses répliques puis rend le tampon au pool.
+    // Un morceau dont l'empreinte est déjà au catalogue n'est pas renvoyé, et un morceau
+    // qu'un autre envoi est en train d'écrire attend son résultat. Sinon il n'est envoyé
+    // qu'une fois, à la première réplique, qui le transmet à la suivante tout en l'écrivant
+    // (réplication en chaîne). Si la tête de chaîne est injoignable, la chaîne repart de la
+    // réplique suivante. Le morceau voyage et est stocké compressé si cela en vaut la peine
+    // et qu'un tampon est libre pour le compresser.
+    private static class ChunkWriter implements Callable<MetadataCatalog.ChunkRef> {
+        private final byte[] buffer;
+        private final int length;
+
+        ChunkWriter(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        // Renvoie la référence du morceau avec les répliques qui le détiennent
+        @Override
+        public MetadataCatalog.ChunkRef call() throws IOException {
+            try {
+                String key = ChunkCodec.fingerprint(buffer, length);
+                MetadataCatalog.ChunkRef existing = CATALOG.pin(key);
+                if (existing != null) {
+                    return existing;
+                }
+                try {
+                    MetadataCatalog.ChunkRef stored = ERASURE != null ? storeShards(key, slavesFor(key)) : store(key, slavesFor(key));
+                    CATALOG.stored(stored);
+                    return stored;
+                } catch (IOException | RuntimeException e) {
+                    CATALOG.notStored(key);
+                    deleteOrphans(CATALOG.unpin(Collections.singletonList(key)));
+                    throw e;
+                }
+            } finally {
+                releaseChunkBuffer(buffer);
+            }
+        }
+
+        // Enregistre les fragments du morceau, le i-ème sur le i-ème esclave ; le morceau
+        // garde cet emplacement même si quelques fragments (m au plus) manquent, qu'une
+        // réparation réécrira
+        private MetadataCatalog.ChunkRef storeShards(String key, List<SlavePool> slaves) throws IOException {
+            try {
+                ERASURE.write(slaves, key, buffer, length, COMPRESS_CHUNKS, SLAVE_EXECUTOR, SHARD_BUFFERS);
+            } catch (IOException e) {
+                throw new IOException("Échec de l'envoi de " + key + ": " + e.getMessage(), e);
+            }
+            List<String> locations = new ArrayList<>(slaves.size());
+            for (SlavePool slave : slaves) {
+                locations.add(slave.getAddress());
+            }
+            return new MetadataCatalog.ChunkRef(key, length, ERASURE.dataShards, locations);
+        }
+
+        // Enregistre le morceau sur les répliques données, en chaîne
+        MetadataCatalog.ChunkRef store(String key, List<SlavePool> replicas) throws IOException {
+            byte[] compressed = COMPRESS_CHUNKS ? tryAcquireChunkBuffer() : null;
+            try {
+                int compressedLength = compressed != null ? ChunkCodec.compress(buffer, length, compressed) : -1;
+                if (compressedLength >= 0) {
+                    return store(key, replicas, SlaveProtocol.CODEC_DEFLATE, compressed, compressedLength);
+                }
+                return store(key, replicas, SlaveProtocol.CODEC_RAW, buffer, length);
+            } finally {
+                if (compressed != null) {
+                    releaseChunkBuffer(compressed);
+                }
+            }
+        }
+
+        // Envoie aux répliques les octets du morceau, codés avec codec, et leur CRC32C
+        private MetadataCatalog.ChunkRef store(String key, List<SlavePool> replicas, byte codec,
+                                               byte[] payload, int payloadLength) throws IOException {
+            try {
+                List<String> stored = ChunkTransfers.put(replicas, key, codec, payload, payloadLength);
+                ChunkCodec.record(length, payloadLength);
+                return new MetadataCatalog.ChunkRef(key, length, stored);
+            } catch (IOException e) {
+                throw new IOException("Échec de l'envoi de " + key + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // Octets [from, to) d'un morceau à transmettre au client
+    static class ChunkSlice {
+        final MetadataCatalog.ChunkRef chunk;
+        final int from;
+        final int to;
+
+        ChunkSlice(MetadataCatalog.ChunkRef chunk, int from, int to) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // Morceau lu chez un esclave : tampon du pool et nombre d'octets utiles
+    static class ChunkData {
+        final byte[] buffer;
+        final int length;
+
+        ChunkData(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    // Tâche qui lit un morceau complet, depuis le cache s'il s'y trouve, sinon depuis la
+    // réplique la moins chargée, puis le garde en cache. Si la réplique tarde
+    // à répondre, la même lecture est lancée en parallèle sur la réplique suivante et la
+    // première réponse l'emporte ; une réplique en échec est remplacée par la suivante.
+    // Le tampon reçu appartient à la tâche, qui rend au pool tous ceux qu'elle ne renvoie pas.
+    // Un morceau codé est reconstitué à partir des k premiers fragments arrivés.
+    private static class ChunkReader implements Callable<ChunkData> {
+        private final MetadataCatalog.ChunkRef chunk;
+        private final byte[] buffer;
+
+        ChunkReader(MetadataCatalog.ChunkRef chunk, byte[] buffer) {
+            this.chunk = chunk;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ChunkData call() throws IOException {
+            int cached = CHUNK_CACHE.get(chunk.key, buffer);
+            if (cached >= 0) {
+                return new ChunkData(buffer, cached);
+            }
+            if (chunk.dataShards > 0) {
+                return readShards();
+            }
+
+            List<SlavePool> replicas;
+            try {
+                replicas = rankReplicas(chunk.locations);
+            } catch (IOException e) {
+                releaseChunkBuffer(buffer);
+                throw e;
+            }
+
+            CompletionService<ChunkData> attempts = new ExecutorCompletionService<>(SLAVE_EXECUTOR);
+            Map<Future<ChunkData>, byte[]> pending = new HashMap<>();
+            int next = 0;
+            SlavePool lastStarted = replicas.get(next++);
+            pending.put(attempts.submit(() -> readFrom(lastStarted, chunk.key, buffer)), buffer);
+            IOException failure = null;
+            try {
+                while (!pending.isEmpty()) {
+                    Future<ChunkData> done = null;
+                    if (next < replicas.size()) {
+                        done = attempts.poll(hedgeDelayNanos(replicas.get(next - 1)), TimeUnit.NANOSECONDS);
+                        if (done == null) {
+                            // Réplique lente : relancer la lecture sur la suivante si un tampon est libre
+                            byte[] extra = tryAcquireChunkBuffer();
+                            if (extra == null) {
+                                done = attempts.take();
+                            } else {
+                                SlavePool hedge = replicas.get(next++);
+                                pending.put(attempts.submit(() -> readFrom(hedge, chunk.key, extra)), extra);
+                                continue;
+                            }
+                        }
+                    } else {
+                        done = attempts.take();
+                    }
+
+                    byte[] attemptBuffer = pending.remove(done);
+                    try {
+                        ChunkData data = done.get();
+                        releaseWhenDone(pending);
+                        CHUNK_CACHE.put(chunk.key, data.buffer, data.length);
+                        return data;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        if (cause instanceof ChunkCodec.CorruptChunkException) {
+                            // Réplique altérée : la lecture continue ailleurs et la réplique est réécrite
+                            System.err.println("Réplique altérée : " + cause.getMessage());
+                            SLAVE_EXECUTOR.execute(() -> repairQuietly(chunk.key));
+                        }
+                        if (next < replicas.size()) {
+                            SlavePool fallback = replicas.get(next++);
+                            pending.put(attempts.submit(() -> readFrom(fallback, chunk.key, attemptBuffer)), attemptBuffer);
+                        } else {
+                            releaseChunkBuffer(attemptBuffer);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                releaseWhenDone(pending);
+                throw new InterruptedIOException("Lecture de " + chunk.key + " interrompue.");
+            }
+            throw new IOException("Échec de la lecture de " + chunk.key + ": " + failure.getMessage(), failure);
+        }
+
+        private ChunkData readShards() throws IOException {
+            try {
+                List<SlavePool> slaves = slavesAt(chunk.locations);
+                // Un fragment de données est doublé par la parité au-delà du délai de
+                // l'esclave de données habituellement le plus lent
+                long hedge = 0;
+                for (SlavePool slave : slaves.subList(0, chunk.dataShards)) {
+                    hedge = Math.max(hedge, hedgeDelayNanos(slave));
+                }
+                int length = codingOf(chunk).read(slaves, chunk.key, chunk.length, buffer, SLAVE_EXECUTOR, hedge,
+                        () -> SLAVE_EXECUTOR.execute(() -> repairQuietly(chunk.key)), SHARD_BUFFERS);
+                CHUNK_CACHE.put(chunk.key, buffer, length);
+                return new ChunkData(buffer, length);
+            } catch (IOException e) {
+                releaseChunkBuffer(buffer);
+                throw new IOException("Échec de la lecture de " + chunk.key + ": " + e.getMessage(), e);
+            }
+        }
+
+        // Lit la réplique d'un esclave, dont le CRC32C est vérifié à la réception
+        static ChunkData readFrom(SlavePool slave, String key, byte[] target) throws IOException {
+            return new ChunkData(target, ChunkTransfers.get(slave, key, target));
+        }
+
+        // Délai avant de doubler une lecture : deux fois le temps de réponse habituel de la réplique
+        private long hedgeDelayNanos(SlavePool slave) {
+            return Math.max(TimeUnit.MILLISECONDS.toNanos(HEDGE_MIN_DELAY_MS), 2 * slave.averageNanos());
+        }
+
+        // Rend au pool les tampons des lectures perdantes dès qu'elles se terminent
+        private void releaseWhenDone(Map<Future<ChunkData>, byte[]> losers) {
+            if (losers.isEmpty()) {
+                return;
+            }
+            Map<Future<ChunkData>, byte[]> remaining = new HashMap<>(losers);
+            SLAVE_EXECUTOR.execute(() -> {
+                awaitQuietly(remaining.keySet());
+                for (byte[] loserBuffer : remaining.values()) {
+                    releaseChunkBuffer(loserBuffer);
+                }
+            });
+        }
     }
 
     // Classe pour gérer chaque client connecté
-    private static class ClientHandler extends Thread {
+    private static class ClientHandler implements Runnable {
+        // Actions mesurées dans action.<nom> ; une action inconnue n'ajoute pas de métrique
+        private static final Set<String> ACTIONS = new HashSet<>(Arrays.asList(
+                "send", "rsend", "msend", "get", "range", "mget", "delete", "mdelete", "list", "stat", "stats", "repair",
+                "locate", "allocate", "commit"));
+
         private Socket socket;
 
         public ClientHandler(Socket socket) {
@@ -57,26 +1274,40 @@ public class MainServer {
 
         @Override
         public void run() {
+            long start = System.nanoTime();
+            String action = null;
+            boolean failed = true;
             try (InputStream inputStream = socket.getInputStream();
                  OutputStream outputStream = socket.getOutputStream()) {
 
                 DataInputStream dataInputStream = new DataInputStream(inputStream);
                 DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
 
-                String action = dataInputStream.readUTF(); // Action demandée par le client (envoyer, télécharger, supprimer, etc.)
+                action = dataInputStream.readUTF(); // Action demandée par le client (envoyer, télécharger, supprimer, etc.)
 
                 if (action.equals("send")) {
                     handleSendFile(dataInputStream, dataOutputStream);
+                } else if (action.equals("rsend")) {
+                    handleResumableSend(dataInputStream, dataOutputStream);
+                } else if (action.equals("msend")) {
+                    handleBatchSend(dataInputStream, dataOutputStream);
                 } else if (action.equals("get")) {
                     handleGetFile(dataInputStream, dataOutputStream);
-                } else if (action.equals("delete")) {
-                    handleDeleteFile(dataInputStream, dataOutputStream);
-                } else if (action.equals("list")) {
-                    handleListFiles(dataOutputStream);
+                } else if (action.equals("range")) {
+                    handleGetRange(dataInputStream, dataOutputStream);
+                } else if (action.equals("mget")) {
+                    handleBatchGet(dataInputStream, dataOutputStream);
+                } else {
+                    handleControl(action, socket.getInetAddress(), dataInputStream, dataOutputStream);
                 }
+                failed = false;
 
             } catch (IOException e) {
                 System.err.println("Erreur de traitement du client sur serveur principal: " + e.getMessage());
+            } finally {
+                if (action != null && ACTIONS.contains(action)) {
+                    Metrics.recordRequest("action." + action, start, failed);
+                }
             }
         }
 
@@ -84,138 +1315,284 @@ public class MainServer {
         private void handleSendFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
             String filename = dataInputStream.readUTF();
             long fileSize = dataInputStream.readLong();
-            byte[] fileBytes = new byte[(int) fileSize];
-            dataInputStream.readFully(fileBytes);
 
-            // Diviser le fichier en trois parties
-            int partSize = (int) Math.ceil(fileSize / 3.0);
-            for (int i = 0; i < 3; i++) {
-                int start = i * partSize;
-                int end = Math.min(start + partSize, fileBytes.length);
-                byte[] partData = Arrays.copyOfRange(fileBytes, start, end);
+            UploadSession session = new UploadSession(null, filename, fileSize);
+            receiveFile(dataInputStream, session);
+            // Le fichier n'apparaît dans le catalogue qu'une fois tous ses morceaux enregistrés
+            dataOutputStream.writeUTF(finishUpload(session));
+        }
+
+        // Envoi qui peut être repris : le client donne l'identifiant de l'envoi interrompu
+        // (ou une chaîne vide), le serveur répond par l'identifiant à rappeler et la position
+        // à partir de laquelle le client doit envoyer la suite du fichier
+        private void handleResumableSend(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String filename = dataInputStream.readUTF();
+            long fileSize = dataInputStream.readLong();
+            String uploadId = dataInputStream.readUTF();
+
+            UploadSession session = openUpload(filename, fileSize, uploadId);
+            dataOutputStream.writeUTF(session.id);
+            dataOutputStream.writeLong(session.received);
+            receiveFile(dataInputStream, session);
+            dataOutputStream.writeUTF(finishUpload(session));
+        }
 
-                // Envoyer chaque partie au serveur esclave
-                try (Socket slaveSocket = new Socket(SERVER_SLAVES[i], SLAVE_PORT);
-                     DataOutputStream slaveOutputStream = new DataOutputStream(slaveSocket.getOutputStream())) {
-                    slaveOutputStream.writeUTF("send");
-                    slaveOutputStream.writeUTF(filename);
-                    slaveOutputStream.writeInt(i + 1); // Numéro de la partie
-                    slaveOutputStream.writeLong(partData.length);
-                    slaveOutputStream.write(partData);
+        // Envoi groupé : table des fichiers, puis leurs octets à la suite (voir BatchUpload)
+        private void handleBatchSend(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            BatchUpload batch = readBatch(dataInputStream);
+            try {
+                for (UploadSession segment : batch.segments) {
+                    receiveFile(dataInputStream, segment);
                 }
+            } catch (IOException e) {
+                // receiveFile a déjà libéré le flux en cours ; libérer les flux déjà reçus
+                interruptBatch(batch, null, Collections.emptyList());
+                throw e;
             }
+            dataOutputStream.writeUTF(finishBatch(batch));
+        }
 
-            dataOutputStream.writeUTF("Fichier envoyé et partitionné.");
+        // Reçoit la suite d'un fichier, à partir de session.received.
+        // Le fichier est découpé selon son contenu (ContentChunker) en morceaux d'au plus
+        // CHUNK_SIZE octets, répartis sur les esclaves d'après leur empreinte ; seuls les
+        // morceaux absents du catalogue sont envoyés. Chaque morceau lu chez le client est
+        // confié à une tâche d'envoi pendant que la lecture du suivant continue, avec au plus
+        // pipelineDepth() morceaux en vol : la mémoire reste bornée et les esclaves reçoivent
+        // en parallèle.
+        private static void receiveFile(DataInputStream dataInputStream, UploadSession session) throws IOException {
+            ContentChunker chunker = newChunker(session.fileSize - session.received);
+            Deque<Future<MetadataCatalog.ChunkRef>> inFlight = new ArrayDeque<>();
+            try {
+                while (chunker.hasMore()) {
+                    if (inFlight.size() >= pipelineDepth()) {
+                        session.chunks.addAll(awaitAll(Collections.singletonList(inFlight.poll())));
+                    }
+
+                    byte[] buffer = acquireChunkBuffer();
+                    int length;
+                    try {
+                        chunker.start(buffer);
+                        while ((length = chunker.cut()) < 0) {
+                            int count = dataInputStream.read(buffer, chunker.readOffset(), chunker.readLength());
+                            if (count < 0) {
+                                throw new EOFException("Client déconnecté pendant l'envoi de " + session.filename);
+                            }
+                            chunker.filled(count);
+                        }
+                    } catch (IOException e) {
+                        releaseChunkBuffer(buffer);
+                        throw e;
+                    }
+                    session.append(buffer, length);
+                    Metrics.add("client.bytes_in", length);
+
+                    inFlight.add(writeChunk(buffer, length));
+                }
+                List<MetadataCatalog.ChunkRef> written = awaitAll(new ArrayList<>(inFlight));
+                inFlight.clear();
+                session.chunks.addAll(written);
+            } catch (IOException e) {
+                // Client décroché ou esclave en échec : attendre les envois en cours, puis garder
+                // l'envoi pour une reprise ou libérer ses morceaux
+                interruptUpload(session, inFlight);
+                throw e;
+            }
         }
 
         // Gère le téléchargement et l'assemblage du fichier
         private void handleGetFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
             String baseName = dataInputStream.readUTF();
-            byte[] fullFile = new byte[0];
-            boolean fileFound = false;
-
-            for (int i = 1; i <= 3; i++) {
-                // Demander la partie à chaque serveur esclave
-                try (Socket slaveSocket = new Socket(SERVER_SLAVES[i - 1], SLAVE_PORT);
-                     DataOutputStream slaveOutputStream = new DataOutputStream(slaveSocket.getOutputStream());
-                     DataInputStream slaveInputStream = new DataInputStream(slaveSocket.getInputStream())) {
-
-                    slaveOutputStream.writeUTF("get");
-                    slaveOutputStream.writeUTF(baseName + ".part" + i);
-
-                    String response = slaveInputStream.readUTF();
-                    if (response.equals("found")) {
-                        fileFound = true;
-                        long partSize = slaveInputStream.readLong();
-                        byte[] partData = new byte[(int) partSize];
-                        slaveInputStream.readFully(partData);
-                        fullFile = concatenate(fullFile, partData);
-                    }
-                }
-            }
 
-            if (fileFound) {
-                dataOutputStream.writeLong(fullFile.length);
-                dataOutputStream.write(fullFile);
-            } else {
+            MetadataCatalog.FileEntry entry = CATALOG.get(baseName);
+            if (entry == null) {
                 dataOutputStream.writeLong(0);
+                return;
+            }
+            dataOutputStream.writeLong(entry.size);
+            sendSlices(slicesOf(entry, 0, entry.size), dataOutputStream);
+        }
+
+        // Téléchargement groupé : noms des fichiers, puis la réponse de batchHeader suivie des
+        // octets des fichiers trouvés, à la suite et dans l'ordre demandé
+        private void handleBatchGet(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            List<MetadataCatalog.FileEntry> entries = new ArrayList<>();
+            for (String name : readNames(dataInputStream)) {
+                entries.add(CATALOG.get(name));
             }
+            dataOutputStream.write(batchHeader(entries));
+            sendSlices(batchSlices(entries), dataOutputStream);
         }
 
-        private void handleDeleteFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        // Télécharge les octets [début, début + longueur) d'un fichier : taille du fichier
+        // (-1 s'il n'existe pas), nombre d'octets envoyés, puis ces octets. Seuls les morceaux
+        // qui recouvrent la plage sont lus sur les esclaves.
+        private void handleGetRange(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
             String baseName = dataInputStream.readUTF();
-            boolean allFilesDeleted = true; // Indique si tous les esclaves ont bien supprimé leurs fichiers
-            boolean atLeastOneSuccess = false; // Indique si au moins un esclave a trouvé et supprimé des fichiers
-        
-            // Parcourir les esclaves pour leur demander de supprimer le fichier
-            for (int i = 0; i < SERVER_SLAVES.length; i++) {
-                try (Socket slaveSocket = new Socket(SERVER_SLAVES[i], SLAVE_PORT);
-                     DataOutputStream slaveOutputStream = new DataOutputStream(slaveSocket.getOutputStream());
-                     DataInputStream slaveInputStream = new DataInputStream(slaveSocket.getInputStream())) {
-        
-                    // Envoyer la commande de suppression
-                    slaveOutputStream.writeUTF("delete");
-                    slaveOutputStream.writeUTF(baseName);
-        
-                    // Lire la réponse de l'esclave
-                    String response = slaveInputStream.readUTF();
-                    System.out.println("Réponse du serveur esclave " + SERVER_SLAVES[i] + ": " + response);
-        
-                    // Analyser la réponse
-                    if (response.equals("Fichiers supprimés avec succès.")) {
-                        atLeastOneSuccess = true; // Au moins un esclave a supprimé des fichiers
-                    } else if (response.equals("Aucun fichier trouvé.")) {
-                        System.out.println("Aucun fichier à supprimer sur le serveur esclave " + SERVER_SLAVES[i]);
-                    } else {
-                        allFilesDeleted = false; // Si un esclave a échoué, marquer comme échec global
+            long offset = dataInputStream.readLong();
+            long length = dataInputStream.readLong();
+
+            MetadataCatalog.FileEntry entry = CATALOG.get(baseName);
+            if (entry == null) {
+                dataOutputStream.writeLong(-1);
+                return;
+            }
+            List<ChunkSlice> slices = offset < 0 || length < 0 ? Collections.emptyList() : slicesOf(entry, offset, length);
+            long count = 0;
+            for (ChunkSlice slice : slices) {
+                count += slice.to - slice.from;
+            }
+            dataOutputStream.writeLong(entry.size);
+            dataOutputStream.writeLong(count);
+            sendSlices(slices, dataOutputStream);
+        }
+
+        // Les morceaux sont préchargés sur pipelineDepth() esclaves à la fois et relayés au
+        // client dans l'ordre, dès que le premier est arrivé. Seul le premier tampon est
+        // attendu : un transfert qui en détient déjà ne bloque pas pour en obtenir d'autres,
+        // sans quoi des téléchargements simultanés s'attendraient les uns les autres.
+        private static void sendSlices(List<ChunkSlice> slices, DataOutputStream dataOutputStream) throws IOException {
+            Deque<Future<ChunkData>> inFlight = new ArrayDeque<>();
+            int nextSlice = 0;
+            try {
+                for (ChunkSlice slice : slices) {
+                    // Garder le pipeline plein, en demandant les tampons dans l'ordre des morceaux
+                    while (nextSlice < slices.size() && inFlight.size() < pipelineDepth()) {
+                        byte[] buffer = inFlight.isEmpty() ? acquireChunkBuffer() : tryAcquireChunkBuffer();
+                        if (buffer == null) {
+                            break;
+                        }
+                        inFlight.add(readChunk(slices.get(nextSlice).chunk, buffer));
+                        nextSlice++;
                     }
-                } catch (IOException e) {
-                    System.err.println("Erreur de communication avec le serveur esclave " + SERVER_SLAVES[i] + ": " + e.getMessage());
-                    allFilesDeleted = false;
+
+                    ChunkData data = awaitAll(Collections.singletonList(inFlight.peek())).get(0);
+                    inFlight.poll();
+                    try {
+                        if (data.length != slice.chunk.length) {
+                            throw new IOException("Taille inattendue pour " + slice.chunk.key + " : " + data.length);
+                        }
+                        dataOutputStream.write(data.buffer, slice.from, slice.to - slice.from);
+                        Metrics.add("client.bytes_out", slice.to - slice.from);
+                    } finally {
+                        releaseChunkBuffer(data.buffer);
+                    }
+                }
+            } finally {
+                // En cas d'erreur, attendre les lectures en cours avant de rendre leurs tampons
+                releaseChunks(inFlight);
+            }
+        }
+
+        // Donne la taille, le nombre de morceaux, la somme de contrôle et la date d'un fichier
+        private static void handleStatFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String baseName = dataInputStream.readUTF();
+            MetadataCatalog.FileEntry entry = CATALOG.get(baseName);
+            if (entry == null) {
+                dataOutputStream.writeLong(-1);
+                return;
+            }
+            dataOutputStream.writeLong(entry.size);
+            dataOutputStream.writeInt(entry.chunks.size());
+            dataOutputStream.writeLong(entry.checksum);
+            dataOutputStream.writeLong(entry.modified);
+        }
+
+        // Emplacement des morceaux d'un fichier, pour le télécharger directement depuis les
+        // esclaves : taille du fichier (long, -1 s'il n'existe pas), nombre de portions (int),
+        // puis pour chacune la clé (UTF) et la taille (int) du morceau, la portion [from, to)
+        // du morceau qui appartient au fichier (deux int), son nombre de fragments de données
+        // (int, 0 pour un morceau répliqué) et les adresses de ses répliques ou fragments
+        private static void handleLocateFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            MetadataCatalog.FileEntry entry = CATALOG.get(dataInputStream.readUTF());
+            if (entry == null) {
+                dataOutputStream.writeLong(-1);
+                return;
+            }
+            List<ChunkSlice> slices = slicesOf(entry, 0, entry.size);
+            dataOutputStream.writeLong(entry.size);
+            dataOutputStream.writeInt(slices.size());
+            for (ChunkSlice slice : slices) {
+                dataOutputStream.writeUTF(slice.chunk.key);
+                dataOutputStream.writeInt(slice.chunk.length);
+                dataOutputStream.writeInt(slice.from);
+                dataOutputStream.writeInt(slice.to);
+                dataOutputStream.writeInt(slice.chunk.dataShards);
+                dataOutputStream.writeInt(slice.chunk.locations.size());
+                for (String location : slice.chunk.locations) {
+                    dataOutputStream.writeUTF(location);
                 }
             }
-        
+        }
+
+        private static void handleDeleteFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String baseName = dataInputStream.readUTF();
+
+            // Le fichier disparaît du catalogue avant ses morceaux : il n'est plus visible
+            // même si un esclave ne répond pas. Seuls les morceaux qu'aucun autre fichier
+            // n'utilise sont supprimés des esclaves.
+            List<MetadataCatalog.ChunkRef> orphans = CATALOG.remove(baseName);
+            if (orphans == null) {
+                dataOutputStream.writeUTF("Échec de la suppression : aucun fichier trouvé ou erreur.");
+                return;
+            }
+
             // Envoyer la réponse finale au client
-            if (atLeastOneSuccess && allFilesDeleted) {
+            if (deleteOrphans(orphans)) {
                 dataOutputStream.writeUTF("Fichiers supprimés avec succès.");
-            } else if (atLeastOneSuccess) {
-                dataOutputStream.writeUTF("Fichiers partiellement supprimés.");
             } else {
-                dataOutputStream.writeUTF("Échec de la suppression : aucun fichier trouvé ou erreur.");
+                dataOutputStream.writeUTF("Fichiers partiellement supprimés.");
             }
         }
-        
-
-        // Liste les fichiers disponibles pour téléchargement
-        private void handleListFiles(DataOutputStream dataOutputStream) throws IOException {
-            Set<String> fileSet = new HashSet<>();
-
-            for (int i = 1; i <= 3; i++) {
-                try (Socket slaveSocket = new Socket(SERVER_SLAVES[i - 1], SLAVE_PORT);
-                     DataOutputStream slaveOutputStream = new DataOutputStream(slaveSocket.getOutputStream());
-                     DataInputStream slaveInputStream = new DataInputStream(slaveSocket.getInputStream())) {
 
-                    slaveOutputStream.writeUTF("list");
-                    int fileCount = slaveInputStream.readInt();
+        // Suppression groupée : noms des fichiers, en un seul enregistrement du catalogue ;
+        // les morceaux devenus orphelins sont supprimés ensemble, esclave par esclave
+        private static void handleDeleteFiles(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            List<String> names = readNames(dataInputStream);
+            List<MetadataCatalog.ChunkRef> orphans = new ArrayList<>();
+            int removed = CATALOG.removeAll(names, orphans);
+            boolean deleted = deleteOrphans(orphans);
+            dataOutputStream.writeUTF(removed + " fichiers supprimés sur " + names.size()
+                    + (deleted ? "." : ", morceaux partiellement supprimés."));
+        }
 
-                    for (int j = 0; j < fileCount; j++) {
-                        fileSet.add(slaveInputStream.readUTF());
-                    }
+        // Métriques du serveur principal, puis celles de chaque esclave préfixées par
+        // slave.<adresse>. ; slave.<adresse>.up vaut 0 pour un esclave injoignable. Réponse :
+        // nombre de valeurs, puis nom (UTF) et valeur (long) de chacune
+        private static void handleStats(DataOutputStream dataOutputStream) throws IOException {
+            Map<String, Long> stats = new TreeMap<>(CHUNK_CACHE.stats());
+            stats.putAll(ChunkCodec.stats());
+            stats.putAll(Metrics.snapshot());
+            List<Callable<Map<String, Long>>> requests = new ArrayList<>();
+            for (SlavePool slave : SLAVE_POOLS) {
+                requests.add(() -> statsOfSlave(slave));
+            }
+            List<Map<String, Long>> slaveStats = fanOut(requests);
+            for (int i = 0; i < SLAVE_POOLS.length; i++) {
+                String prefix = "slave." + SLAVE_POOLS[i].getAddress() + ".";
+                stats.put(prefix + "up", slaveStats.get(i).isEmpty() ? 0L : 1L);
+                for (Map.Entry<String, Long> stat : slaveStats.get(i).entrySet()) {
+                    stats.put(prefix + stat.getKey(), stat.getValue());
                 }
             }
+            dataOutputStream.writeInt(stats.size());
+            for (Map.Entry<String, Long> stat : stats.entrySet()) {
+                dataOutputStream.writeUTF(stat.getKey());
+                dataOutputStream.writeLong(stat.getValue());
+            }
+        }
 
-            dataOutputStream.writeInt(fileSet.size());
-            for (String file : fileSet) {
+        // Liste les fichiers disponibles pour téléchargement
+        private static void handleListFiles(DataOutputStream dataOutputStream) throws IOException {
+            List<String> names = new ArrayList<>();
+            for (MetadataCatalog.FileEntry entry : CATALOG.list()) {
+                names.add(entry.name);
+            }
+
+            dataOutputStream.writeInt(names.size());
+            for (String file : names) {
                 dataOutputStream.writeUTF(file);
             }
         }
 
-        // Méthode pour concaténer les parties du fichier
-        private byte[] concatenate(byte[] a, byte[] b) {
-            byte[] result = new byte[a.length + b.length];
-            System.arraycopy(a, 0, result, 0, a.length);
-            System.arraycopy(b, 0, result, a.length, b.length);
-            return result;
-        }
     }
 }
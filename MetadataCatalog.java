@@ -0,0 +1,521 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+// Catalogue des fichiers stockés, tenu en mémoire par le serveur principal.
+//
+// Chaque modification est d'abord ajoutée au journal (catalog.wal) et forcée sur disque,
+// puis appliquée en mémoire. Au démarrage, le dernier instantané (catalog.snapshot) est
+// chargé puis le journal rejoué ; un enregistrement tronqué par un arrêt brutal est ignoré.
+// Lorsque le journal devient long, un nouvel instantané est écrit et le journal vidé.
+//
+// Un fichier occupe les octets [offset, offset + size) de la suite de ses morceaux : offset
+// vaut 0 pour un fichier envoyé seul, tandis que les petits fichiers d'un envoi groupé sont
+// rangés à la suite les uns des autres dans des morceaux communs.
+//
+// Les morceaux sont désignés par l'empreinte de leur contenu et partagés entre fichiers :
+// le catalogue compte les références de chaque morceau, recalculées au chargement. Un envoi
+// en cours épingle les morceaux qu'il réutilise ou écrit, pour qu'ils ne soient pas supprimés
+// avant que son fichier n'apparaisse dans le catalogue. Un morceau qui n'est plus ni
+// référencé ni épinglé est rendu « orphelin » à l'appelant, qui le supprime des esclaves
+// puis appelle forget() ; entre-temps, un envoi qui en aurait besoin attend.
+class MetadataCatalog {
+    // RECORD_PUT et RECORD_DELETE ne sont plus écrits, mais encore relus dans les anciens journaux
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    // Plusieurs fichiers enregistrés ou supprimés ensemble, en un seul enregistrement
+    private static final byte RECORD_PUT_ALL = 3;
+    private static final byte RECORD_DELETE_ALL = 4;
+    // Premier entier d'un instantané au format actuel ; les anciens commencent par le nombre
+    // de fichiers et ne connaissent pas l'offset
+    private static final int SNAPSHOT_VERSION_2 = -2;
+    // Nombre d'enregistrements du journal au-delà duquel un instantané est écrit
+    private static final int COMPACTION_THRESHOLD = 10_000;
+
+    private final Path snapshotPath;
+    private final Path walPath;
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+    private final Map<String, StoredChunk> chunks = new HashMap<>();
+    private DataOutputStream wal;
+    private FileOutputStream walFile;
+    private int walRecords;
+
+    MetadataCatalog(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        snapshotPath = dir.resolve("catalog.snapshot");
+        walPath = dir.resolve("catalog.wal");
+
+        loadSnapshot();
+        long validLength = replayWal();
+        // Supprimer un éventuel enregistrement incomplet avant d'écrire à la suite
+        try (RandomAccessFile file = new RandomAccessFile(walPath.toFile(), "rw")) {
+            file.setLength(validLength);
+        }
+        openWal();
+    }
+
+    FileEntry get(String name) {
+        return files.get(name);
+    }
+
+    Collection<FileEntry> list() {
+        return files.values();
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    // Enregistre (ou remplace) un fichier et renvoie les morceaux de l'ancienne version
+    // devenus orphelins
+    List<ChunkRef> put(FileEntry entry) throws IOException {
+        return putAll(Collections.singletonList(entry));
+    }
+
+    // Enregistre plusieurs fichiers en un seul enregistrement du journal, donc une seule
+    // écriture forcée sur disque : après un arrêt brutal, ils sont tous là ou aucun
+    synchronized List<ChunkRef> putAll(List<FileEntry> entries) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_PUT_ALL);
+        out.writeInt(entries.size());
+        for (FileEntry entry : entries) {
+            entry.writeTo(out);
+        }
+        appendRecord(record.toByteArray());
+        List<ChunkRef> orphans = new ArrayList<>();
+        for (FileEntry entry : entries) {
+            applyPut(entry, orphans);
+        }
+        compactIfNeeded();
+        return orphans;
+    }
+
+    // Retire un fichier du catalogue et renvoie ses morceaux devenus orphelins, ou null
+    // s'il n'existait pas
+    List<ChunkRef> remove(String name) throws IOException {
+        List<ChunkRef> orphans = new ArrayList<>();
+        return removeAll(Collections.singletonList(name), orphans) == 0 ? null : orphans;
+    }
+
+    // Retire plusieurs fichiers en un seul enregistrement du journal ; les morceaux devenus
+    // orphelins sont ajoutés à orphans. Renvoie le nombre de fichiers qui existaient.
+    synchronized int removeAll(Collection<String> names, List<ChunkRef> orphans) throws IOException {
+        Set<String> present = new LinkedHashSet<>();
+        for (String name : names) {
+            if (files.containsKey(name)) {
+                present.add(name);
+            }
+        }
+        if (present.isEmpty()) {
+            return 0;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_DELETE_ALL);
+        out.writeInt(present.size());
+        for (String name : present) {
+            out.writeUTF(name);
+        }
+        appendRecord(record.toByteArray());
+        for (String name : present) {
+            applyRemove(name, orphans);
+        }
+        compactIfNeeded();
+        return present.size();
+    }
+
+    // Épingle un morceau pour un envoi en cours et renvoie son emplacement s'il est déjà
+    // enregistré, ou null s'il faut l'envoyer : l'appelant en réserve alors l'écriture, et
+    // les autres envois du même morceau attendent qu'il appelle stored() ou notStored() pour
+    // prendre son résultat. Attend aussi la fin de sa suppression éventuelle.
+    synchronized ChunkRef pin(String key) throws InterruptedIOException {
+        StoredChunk chunk = awaitChunk(key, true);
+        chunk.pins++;
+        if (chunk.ref == null) {
+            chunk.writing = true;
+        }
+        return chunk.ref;
+    }
+
+    // Comme pin(), sans réserver l'écriture ni attendre celle d'un autre envoi : pour les
+    // envois directs, dont le client écrit les morceaux à son rythme. Deux envois peuvent
+    // alors écrire le même morceau, ce que les esclaves acceptent.
+    synchronized ChunkRef pinShared(String key) throws InterruptedIOException {
+        StoredChunk chunk = awaitChunk(key, false);
+        chunk.pins++;
+        return chunk.ref;
+    }
+
+    private StoredChunk awaitChunk(String key, boolean awaitWriting) throws InterruptedIOException {
+        StoredChunk chunk = chunks.get(key);
+        while (chunk != null && (chunk.deleting || (awaitWriting && chunk.writing))) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente du morceau " + key + " interrompue.");
+            }
+            chunk = chunks.get(key);
+        }
+        if (chunk == null) {
+            chunk = new StoredChunk();
+            chunks.put(key, chunk);
+        }
+        return chunk;
+    }
+
+    // Enregistre l'emplacement d'un morceau épinglé que l'on vient d'envoyer
+    synchronized void stored(ChunkRef ref) {
+        StoredChunk chunk = chunks.get(ref.key);
+        if (chunk != null) {
+            chunk.ref = ref;
+            chunk.writing = false;
+            notifyAll();
+        }
+    }
+
+    // Libère l'écriture réservée par pin() d'un morceau qui n'a pas pu être envoyé : un
+    // autre envoi qui l'attendait la reprend
+    synchronized void notStored(String key) {
+        StoredChunk chunk = chunks.get(key);
+        if (chunk != null && chunk.writing) {
+            chunk.writing = false;
+            notifyAll();
+        }
+    }
+
+    // Retire les épingles d'un envoi et renvoie les morceaux devenus orphelins
+    synchronized List<ChunkRef> unpin(Collection<String> keys) {
+        List<ChunkRef> orphans = new ArrayList<>();
+        for (String key : keys) {
+            StoredChunk chunk = chunks.get(key);
+            if (chunk != null) {
+                chunk.pins--;
+                collectIfOrphan(key, chunk, orphans);
+            }
+        }
+        return orphans;
+    }
+
+    // Retire les épingles des morceaux qu'un envoi direct abandonné devait écrire : le client
+    // a pu en écrire une partie sans les confirmer. Un morceau jamais enregistré qui devient
+    // orphelin est renvoyé avec son emplacement prévu, pour supprimer ses éventuelles répliques.
+    synchronized List<ChunkRef> unpinPlanned(Collection<ChunkRef> planned) {
+        List<ChunkRef> orphans = new ArrayList<>();
+        for (ChunkRef ref : planned) {
+            StoredChunk chunk = chunks.get(ref.key);
+            if (chunk != null) {
+                chunk.pins--;
+                if (chunk.ref == null && chunk.references == 0 && chunk.pins == 0) {
+                    chunk.ref = ref;
+                }
+                collectIfOrphan(ref.key, chunk, orphans);
+            }
+        }
+        return orphans;
+    }
+
+    // Oublie des morceaux orphelins une fois supprimés des esclaves
+    synchronized void forget(Collection<ChunkRef> orphans) {
+        for (ChunkRef orphan : orphans) {
+            chunks.remove(orphan.key);
+        }
+        notifyAll();
+    }
+
+    private void applyPut(FileEntry entry, List<ChunkRef> orphans) {
+        for (ChunkRef ref : entry.chunks) {
+            StoredChunk chunk = chunks.computeIfAbsent(ref.key, key -> new StoredChunk());
+            chunk.references++;
+            chunk.ref = ref;
+        }
+        FileEntry previous = files.put(entry.name, entry);
+        if (previous != null) {
+            release(previous, orphans);
+        }
+    }
+
+    private void applyRemove(String name, List<ChunkRef> orphans) {
+        FileEntry removed = files.remove(name);
+        if (removed != null) {
+            release(removed, orphans);
+        }
+    }
+
+    private void release(FileEntry entry, List<ChunkRef> orphans) {
+        for (ChunkRef ref : entry.chunks) {
+            StoredChunk chunk = chunks.get(ref.key);
+            if (chunk != null) {
+                chunk.references--;
+                collectIfOrphan(ref.key, chunk, orphans);
+            }
+        }
+    }
+
+    private void collectIfOrphan(String key, StoredChunk chunk, List<ChunkRef> orphans) {
+        if (chunk.references > 0 || chunk.pins > 0 || chunk.deleting) {
+            return;
+        }
+        if (chunk.ref == null) {
+            chunks.remove(key); // jamais enregistré
+        } else {
+            chunk.deleting = true;
+            orphans.add(chunk.ref);
+        }
+    }
+
+    // Format d'un enregistrement : [int longueur][octets][long CRC32C des octets]
+    private void appendRecord(byte[] record) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        wal.writeInt(record.length);
+        wal.write(record);
+        wal.writeLong(crc.getValue());
+        wal.flush();
+        walFile.getChannel().force(false);
+        walRecords++;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (walRecords >= COMPACTION_THRESHOLD) {
+            writeSnapshot();
+        }
+    }
+
+    private void applyRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        // Au chargement, les morceaux orphelins sont simplement oubliés
+        List<ChunkRef> orphans = new ArrayList<>();
+        if (type == RECORD_PUT) {
+            applyPut(FileEntry.readFrom(in, false), orphans);
+        } else if (type == RECORD_DELETE) {
+            applyRemove(in.readUTF(), orphans);
+        } else if (type == RECORD_PUT_ALL) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                applyPut(FileEntry.readFrom(in, true), orphans);
+            }
+        } else if (type == RECORD_DELETE_ALL) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                applyRemove(in.readUTF(), orphans);
+            }
+        } else {
+            throw new IOException("Enregistrement de journal inconnu : " + type);
+        }
+        for (ChunkRef orphan : orphans) {
+            chunks.remove(orphan.key);
+        }
+    }
+
+    // Rejoue le journal et renvoie la longueur de sa partie valide
+    private long replayWal() throws IOException {
+        if (!Files.exists(walPath)) {
+            return 0;
+        }
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(walPath)))) {
+            while (true) {
+                byte[] record;
+                long expectedCrc;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > Files.size(walPath)) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    expectedCrc = in.readLong();
+                } catch (EOFException e) {
+                    break; // Fin du journal, éventuellement au milieu d'un enregistrement tronqué
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(record);
+                if (crc.getValue() != expectedCrc) {
+                    System.err.println("Journal du catalogue corrompu après " + validLength + " octets : fin du rejeu.");
+                    break;
+                }
+                applyRecord(record);
+                validLength += 4 + record.length + 8;
+                walRecords++;
+            }
+        }
+        return validLength;
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            int count = in.readInt();
+            boolean withOffset = count == SNAPSHOT_VERSION_2;
+            if (withOffset) {
+                count = in.readInt();
+            }
+            for (int i = 0; i < count; i++) {
+                applyPut(FileEntry.readFrom(in, withOffset), new ArrayList<>());
+            }
+        }
+    }
+
+    // Écrit un instantané complet (fichier temporaire puis renommage atomique) et vide le journal
+    private void writeSnapshot() throws IOException {
+        Path temporary = snapshotPath.resolveSibling("catalog.snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_VERSION_2);
+            out.writeInt(files.size());
+            for (FileEntry entry : files.values()) {
+                entry.writeTo(out);
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        wal.close();
+        Files.write(walPath, new byte[0]);
+        walRecords = 0;
+        openWal();
+    }
+
+    private void openWal() throws IOException {
+        walFile = new FileOutputStream(walPath.toFile(), true);
+        wal = new DataOutputStream(new BufferedOutputStream(walFile));
+    }
+
+    // Description d'un fichier : taille, somme de contrôle, date et emplacement de ses morceaux
+    static class FileEntry {
+        final String name;
+        final long size;
+        final long checksum; // CRC32C du fichier complet
+        final long modified;
+        // Position du premier octet du fichier dans son premier morceau
+        final long offset;
+        final List<ChunkRef> chunks;
+
+        FileEntry(String name, long size, long checksum, long modified, List<ChunkRef> chunks) {
+            this(name, size, checksum, modified, 0, chunks);
+        }
+
+        FileEntry(String name, long size, long checksum, long modified, long offset, List<ChunkRef> chunks) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+            this.modified = modified;
+            this.offset = offset;
+            this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeLong(checksum);
+            out.writeLong(modified);
+            out.writeLong(offset);
+            out.writeInt(chunks.size());
+            for (ChunkRef chunk : chunks) {
+                chunk.writeTo(out);
+            }
+        }
+
+        // withOffset : false pour les enregistrements écrits avant les envois groupés
+        static FileEntry readFrom(DataInputStream in, boolean withOffset) throws IOException {
+            String name = in.readUTF();
+            long size = in.readLong();
+            long checksum = in.readLong();
+            long modified = in.readLong();
+            long offset = withOffset ? in.readLong() : 0;
+            int chunkCount = in.readInt();
+            List<ChunkRef> chunks = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                chunks.add(ChunkRef.readFrom(in));
+            }
+            return new FileEntry(name, size, checksum, modified, offset, chunks);
+        }
+    }
+
+    // Comptage d'un morceau : références des fichiers du catalogue et épingles des envois
+    // en cours ; ref reste null tant que le morceau n'a pas fini d'être envoyé
+    private static class StoredChunk {
+        ChunkRef ref;
+        int references;
+        int pins;
+        // Écriture réservée par pin(), en attendant stored() ou notStored()
+        boolean writing;
+        boolean deleting;
+    }
+
+    // Morceau stocké sur les esclaves : clé (empreinte SHA-256 du contenu), taille et
+    // adresses des esclaves qui en détiennent une réplique. Un morceau codé à effacement
+    // (voir ErasureCoding) a un fragment par adresse : dataShards fragments de données, puis
+    // les fragments de parité.
+    static class ChunkRef {
+        final String key;
+        final int length;
+        // 0 pour un morceau répliqué entier
+        final int dataShards;
+        final List<String> locations;
+
+        ChunkRef(String key, int length, List<String> locations) {
+            this(key, length, 0, locations);
+        }
+
+        ChunkRef(String key, int length, int dataShards, List<String> locations) {
+            this.key = key;
+            this.length = length;
+            this.dataShards = dataShards;
+            this.locations = Collections.unmodifiableList(new ArrayList<>(locations));
+        }
+
+        // Noms des parties du morceau sur les esclaves, dans l'ordre de locations
+        List<String> partNames() {
+            if (dataShards == 0) {
+                return Collections.nCopies(locations.size(), key);
+            }
+            List<String> names = new ArrayList<>(locations.size());
+            for (int i = 0; i < locations.size(); i++) {
+                names.add(ErasureCoding.shardName(key, i));
+            }
+            return names;
+        }
+
+        // Un nombre d'adresses négatif annonce un morceau codé, suivi de dataShards : les
+        // catalogues écrits avant le codage à effacement restent lisibles
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeInt(length);
+            if (dataShards > 0) {
+                out.writeInt(-locations.size());
+                out.writeInt(dataShards);
+            } else {
+                out.writeInt(locations.size());
+            }
+            for (String location : locations) {
+                out.writeUTF(location);
+            }
+        }
+
+        static ChunkRef readFrom(DataInputStream in) throws IOException {
+            String key = in.readUTF();
+            int length = in.readInt();
+            int locationCount = in.readInt();
+            int dataShards = 0;
+            if (locationCount < 0) {
+                locationCount = -locationCount;
+                dataShards = in.readInt();
+            }
+            List<String> locations = new ArrayList<>(locationCount);
+            for (int i = 0; i < locationCount; i++) {
+                locations.add(in.readUTF());
+            }
+            return new ChunkRef(key, length, dataShards, locations);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Compteurs, jauges et histogrammes de latence d'un serveur (principal ou esclave).
+//
+// Tout est enregistré sans verrou : compteurs LongAdder et histogrammes à seaux atomiques,
+// pour un coût de quelques incréments par requête, que l'on peut laisser en production.
+// Les valeurs sont lues par l'action "stats" (serveur principal) ou l'opération OP_STATS
+// (esclave), sous forme de paires nom / valeur triées par nom.
+final class Metrics {
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> LATENCIES = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    static void increment(String name) {
+        add(name, 1);
+    }
+
+    static void add(String name, long delta) {
+        LongAdder counter = COUNTERS.get(name);
+        if (counter == null) {
+            counter = COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+        }
+        counter.add(delta);
+    }
+
+    // Enregistre la durée d'une opération démarrée à startNanos (System.nanoTime())
+    static void recordSince(String name, long startNanos) {
+        LatencyHistogram histogram = LATENCIES.get(name);
+        if (histogram == null) {
+            histogram = LATENCIES.computeIfAbsent(name, key -> new LatencyHistogram());
+        }
+        histogram.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    // Durée et issue d'une requête : name.count, name.errors et la répartition des durées
+    static void recordRequest(String name, long startNanos, boolean failed) {
+        recordSince(name, startNanos);
+        if (failed) {
+            increment(name + ".errors");
+        }
+    }
+
+    // Valeur lue au moment de la consultation (connexions actives, files d'attente...)
+    static void gauge(String name, LongSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> latency : LATENCIES.entrySet()) {
+            latency.getValue().snapshot(latency.getKey(), snapshot);
+        }
+        return snapshot;
+    }
+
+    // Histogramme de durées en microsecondes, à la manière de HdrHistogram : les valeurs
+    // inférieures à 16 ont chacune leur seau, puis chaque puissance de deux est découpée en
+    // 8 seaux, soit une précision de 12,5 % de 0 à plus de dix jours.
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int LINEAR_LIMIT = 16;
+        private static final int MAX_EXPONENT = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketOf(1L << MAX_EXPONENT) + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            long value = Math.max(0, Math.min(micros, (1L << MAX_EXPONENT) - 1));
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        private static int bucketOf(long value) {
+            if (value < LINEAR_LIMIT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        // Plus grande valeur rangée dans un seau
+        private static long upperBoundOf(int bucket) {
+            if (bucket < LINEAR_LIMIT) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+            int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+
+        // Ajoute name.count, name.mean_us, les quantiles et le maximum
+        void snapshot(String name, Map<String, Long> target) {
+            long total = count.sum();
+            target.put(name + ".count", total);
+            if (total == 0) {
+                return;
+            }
+            target.put(name + ".mean_us", sum.sum() / total);
+            long[] counts = new long[buckets.length()];
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                seen += counts[i];
+            }
+            target.put(name + ".p50_us", quantile(counts, seen, 0.50));
+            target.put(name + ".p90_us", quantile(counts, seen, 0.90));
+            target.put(name + ".p99_us", quantile(counts, seen, 0.99));
+            target.put(name + ".p999_us", quantile(counts, seen, 0.999));
+            target.put(name + ".max_us", max.get());
+        }
+
+        private long quantile(long[] counts, long total, double quantile) {
+            long rank = (long) Math.ceil(quantile * total);
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                if (cumulated >= rank && counts[i] > 0) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Parties stockées par un serveur esclave, réparties dans des sous-répertoires.
+//
+// Une partie "nom" est rangée dans racine/xx/yy/nom, où xx et yy sont tirés d'un hachage du
+// nom : même avec des millions de parties, aucun répertoire n'en contient plus de quelques
+// centaines. Les noms des parties présentes sont gardés en mémoire, chargés au démarrage en
+// parcourant les sous-répertoires ; chercher, supprimer ou lister les parties ne lit donc
+// jamais le contenu d'un répertoire.
+//
+// Une partie en cours de réception est écrite dans un fichier temporaire propre à cette
+// réception, de suffixe PARTIAL_SUFFIX, et n'entre dans l'index qu'une fois renommée par
+// commit : deux réceptions simultanées de la même partie ne se mélangent pas.
+class PartStore {
+    static final String PARTIAL_SUFFIX = ".tmp";
+
+    private final File root;
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+
+    // Charge l'index ; les parties d'un ancien stockage à plat sont déplacées dans leur
+    // sous-répertoire et les réceptions interrompues par un arrêt sont supprimées
+    PartStore(File root) throws IOException {
+        this.root = root;
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root.toPath())) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    continue;
+                }
+                String name = entry.getFileName().toString();
+                if (name.endsWith(PARTIAL_SUFFIX)) {
+                    Files.delete(entry);
+                } else {
+                    File target = fileOf(name);
+                    target.getParentFile().mkdirs();
+                    Files.move(entry, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = file.getFileName().toString();
+                if (name.endsWith(PARTIAL_SUFFIX)) {
+                    Files.delete(file);
+                } else {
+                    names.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Nom acceptable pour une partie : un simple nom de fichier, qui ne sort pas du stockage.
+    // Les clients qui écrivent directement sur les esclaves choisissent les noms des parties.
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && name.length() <= 200 && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0
+                && !name.endsWith(PARTIAL_SUFFIX);
+    }
+
+    // Fichier d'une partie enregistrée
+    File fileOf(String name) {
+        int hash = name.hashCode();
+        String shard = String.format("%02x%s%02x", (hash >>> 24) & 0xff, File.separator, (hash >>> 16) & 0xff);
+        return new File(new File(root, shard), name);
+    }
+
+    // Crée le fichier où recevoir une partie avant son commit, à côté de la partie et sous un
+    // nom unique ; crée son sous-répertoire au besoin
+    File newPartialFile(String name) throws IOException {
+        File directory = fileOf(name).getParentFile();
+        directory.mkdirs();
+        return Files.createTempFile(directory.toPath(), name + ".", PARTIAL_SUFFIX).toFile();
+    }
+
+    boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    // Enregistre la partie reçue dans partial (voir newPartialFile), sauf si elle existe
+    // déjà : la partie existante est alors gardée et false renvoyé. Le lien physique est
+    // créé ou refusé atomiquement, là où un renommage remplacerait la partie existante ;
+    // partial reste à supprimer par l'appelant.
+    boolean commit(String name, File partial) throws IOException {
+        try {
+            Files.createLink(fileOf(name).toPath(), partial.toPath());
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        names.add(name);
+        return true;
+    }
+
+    // Remplace atomiquement une partie existante, altérée, par celle reçue dans partial
+    void replace(String name, File partial) throws IOException {
+        Files.move(partial.toPath(), fileOf(name).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        names.add(name);
+    }
+
+    // Supprime une partie ; renvoie false si elle n'existe pas ou n'a pas pu être supprimée
+    boolean delete(String name) {
+        if (!names.remove(name)) {
+            return false;
+        }
+        File file = fileOf(name);
+        if (file.delete() || !file.exists()) {
+            return true;
+        }
+        names.add(name);
+        return false;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    // Noms des parties présentes (copie)
+    List<String> names() {
+        return new ArrayList<>(names);
+    }
+}
@@ -0,0 +1,625 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Frontal non bloquant du serveur principal (FRONT_END=selector dans config.txt).
+//
+// Quelques threads, chacun avec son Selector, se partagent toutes les connexions clientes :
+// un client inactif ou lent n'occupe aucun thread. Le protocole est celui de ClientHandler.
+// Pour "send", "rsend" et "msend", les octets reçus remplissent les tampons de morceaux du
+// serveur principal et chaque morceau complet part vers les esclaves par MainServer.writeChunk ;
+// pour "get", "range" et "mget", les morceaux lus par MainServer.readChunk sont écrits au client
+// au rythme où il les accepte.
+// Les actions courtes (delete, mdelete, list, stat, stats, repair) s'exécutent sur l'exécuteur
+// des esclaves.
+class SelectorFrontEnd {
+    // Taille initiale du tampon d'en-tête ; il ne grandit que si la requête n'y tient pas.
+    // Une requête à un seul nom tient dans SHORT_HEADER_SIZE (un chemin de 4 Ko au plus) ;
+    // seules les listes de noms ou de morceaux (LIST_ACTIONS) vont jusqu'à 1 Mo.
+    private static final int HEADER_BUFFER_SIZE = 1024;
+    private static final int SHORT_HEADER_SIZE = 4 * 1024;
+    private static final int MAX_HEADER_SIZE = 1024 * 1024;
+    private static final Set<String> LIST_ACTIONS = new HashSet<>(Arrays.asList(
+            "msend", "mget", "mdelete", "allocate", "commit"));
+    // Délai entre deux essais pour les connexions qui attendent un tampon de morceau libre
+    private static final long BUFFER_RETRY_MS = 10;
+
+    // Connexions clientes ouvertes, toutes boucles confondues
+    private static final AtomicInteger OPEN_CONNECTIONS = new AtomicInteger();
+
+    private final EventLoop[] loops;
+
+    SelectorFrontEnd(int threads) throws IOException {
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        Metrics.gauge("connections.active", OPEN_CONNECTIONS::get);
+    }
+
+    // Accepte les connexions et les répartit en tourniquet entre les boucles d'événements
+    void run(InetSocketAddress address, int backlog) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "selector-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(address, backlog);
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    // Thread qui surveille un ensemble de connexions ; tout l'état d'une connexion n'est
+    // modifié que par ce thread, les autres lui confient des tâches avec execute()
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Connection> waitingForBuffer = new LinkedHashSet<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    OPEN_CONNECTIONS.incrementAndGet();
+                } catch (IOException e) {
+                    System.err.println("Erreur d'enregistrement d'un client : " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(waitingForBuffer.isEmpty() ? 0 : BUFFER_RETRY_MS);
+                } catch (IOException e) {
+                    System.err.println("Erreur du sélecteur : " + e.getMessage());
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Connection) key.attachment()).resume();
+                }
+                selector.selectedKeys().clear();
+
+                if (!waitingForBuffer.isEmpty()) {
+                    List<Connection> waiting = new ArrayList<>(waitingForBuffer);
+                    waitingForBuffer.clear();
+                    for (Connection connection : waiting) {
+                        connection.resume();
+                    }
+                }
+            }
+        }
+    }
+
+    // Étape d'une requête : avance autant que possible sans bloquer, puis indique à la
+    // connexion ce qu'elle attend (lecture, écriture, fin d'une tâche ou tampon libre)
+    private interface Request {
+        void progress() throws IOException;
+
+        // Rend les tampons de morceaux détenus lorsque la connexion se ferme
+        void release();
+    }
+
+    private static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer header = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+        private Request request;
+        private boolean closed;
+        // Action décodée, mesurée de l'ouverture de la connexion à sa fermeture
+        private String action;
+        private final long started = System.nanoTime();
+        private boolean failed;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        // Reprend la requête après un événement réseau ou la fin d'une tâche
+        void resume() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (request == null) {
+                    request = readRequest();
+                    if (closed) {
+                        return;
+                    }
+                    if (request == null) {
+                        interest(SelectionKey.OP_READ);
+                        return;
+                    }
+                }
+                request.progress();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Erreur de traitement du client sur serveur principal: " + e.getMessage());
+                failed = true;
+                close();
+            }
+        }
+
+        // Reprend la connexion dans son thread dès que la tâche est terminée
+        void resumeWhenDone(CompletableFuture<?> task) {
+            task.whenComplete((result, error) -> loop.execute(this::resume));
+        }
+
+        void waitForBuffer() {
+            interest(0);
+            loop.waitingForBuffer.add(this);
+        }
+
+        void interest(int operations) {
+            if (key.isValid() && key.interestOps() != operations) {
+                key.interestOps(operations);
+            }
+        }
+
+        // Écrit ce que le client accepte ; renvoie true si tout est parti
+        boolean flush(ByteBuffer output) throws IOException {
+            channel.write(output);
+            if (output.hasRemaining()) {
+                interest(SelectionKey.OP_WRITE);
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            loop.waitingForBuffer.remove(this);
+            if (request != null) {
+                request.release();
+            }
+            key.cancel();
+            closeQuietly(channel);
+            OPEN_CONNECTIONS.decrementAndGet();
+            if (action != null) {
+                Metrics.recordRequest("action." + action, started, failed);
+            }
+        }
+
+        // Lit l'en-tête de la requête et essaie de le décoder après chaque lecture : les octets
+        // d'un fichier envoyé ne sont pas lus d'avance avec lui. Le tampon ne grandit que
+        // lorsqu'il est plein sans contenir la requête entière.
+        private Request readRequest() throws IOException {
+            int count = channel.read(header);
+            while (true) {
+                if (count < 0 && header.position() == 0) {
+                    close(); // connexion fermée sans requête
+                    return null;
+                }
+                Request decoded = decodeRequest();
+                if (decoded != null) {
+                    return decoded;
+                }
+                if (count < 0) {
+                    throw new EOFException("Requête incomplète");
+                }
+                if (!header.hasRemaining()) {
+                    int limit = headerLimit();
+                    if (header.capacity() >= limit) {
+                        throw new IOException("Requête de plus de " + limit + " octets refusée");
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(limit, header.capacity() * 4));
+                    header.flip();
+                    larger.put(header);
+                    header = larger;
+                }
+                count = channel.read(header);
+                if (count == 0) {
+                    return null;
+                }
+            }
+        }
+
+        // Taille que peut atteindre l'en-tête de la requête en cours, d'après son action
+        private int headerLimit() {
+            try {
+                String action = new DataInputStream(new ByteArrayInputStream(header.array(), 0, header.position())).readUTF();
+                return LIST_ACTIONS.contains(action) ? MAX_HEADER_SIZE : SHORT_HEADER_SIZE;
+            } catch (IOException e) {
+                return SHORT_HEADER_SIZE; // action elle-même incomplète
+            }
+        }
+
+        // Décode l'action et ses paramètres s'ils sont arrivés en entier, sinon renvoie null ;
+        // les octets suivants restent dans l'en-tête pour la requête
+        private Request decodeRequest() throws IOException {
+            header.flip();
+            ByteArrayInputStream bytes = new ByteArrayInputStream(header.array(), 0, header.limit());
+            DataInputStream in = new DataInputStream(bytes);
+            Request decoded;
+            try {
+                String action = in.readUTF();
+                if (action.equals("send")) {
+                    decoded = new Upload(this, new UploadSession(null, in.readUTF(), in.readLong()), null);
+                } else if (action.equals("rsend")) {
+                    String filename = in.readUTF();
+                    long fileSize = in.readLong();
+                    String uploadId = in.readUTF();
+                    UploadSession session = MainServer.openUpload(filename, fileSize, uploadId);
+                    ByteArrayOutputStream greeting = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(greeting);
+                    out.writeUTF(session.id);
+                    out.writeLong(session.received);
+                    decoded = new Upload(this, session, ByteBuffer.wrap(greeting.toByteArray()));
+                } else if (action.equals("msend")) {
+                    BatchUpload batch = MainServer.readBatch(in);
+                    decoded = batch.segments.isEmpty() ? reply(() -> MainServer.finishBatch(batch)) : new Upload(this, batch);
+                } else if (action.equals("get")) {
+                    MetadataCatalog.FileEntry entry = MainServer.findFile(in.readUTF());
+                    ByteBuffer size = ByteBuffer.allocate(8).putLong(0, entry == null ? 0 : entry.size);
+                    decoded = new Download(this, entry == null ? Collections.emptyList()
+                            : MainServer.slicesOf(entry, 0, entry.size), size);
+                } else if (action.equals("range")) {
+                    decoded = range(MainServer.findFile(in.readUTF()), in.readLong(), in.readLong());
+                } else if (action.equals("mget")) {
+                    List<MetadataCatalog.FileEntry> entries = new ArrayList<>();
+                    for (String name : MainServer.readNames(in)) {
+                        entries.add(MainServer.findFile(name));
+                    }
+                    decoded = new Download(this, MainServer.batchSlices(entries), ByteBuffer.wrap(MainServer.batchHeader(entries)));
+                } else if (action.equals("delete") || action.equals("stat") || action.equals("repair")
+                        || action.equals("mdelete") || action.equals("locate") || action.equals("allocate")
+                        || action.equals("commit")) {
+                    int start = header.limit() - bytes.available();
+                    if (action.equals("mdelete")) {
+                        MainServer.readNames(in);
+                    } else if (action.equals("allocate")) {
+                        DirectUpload.Allocation.readFrom(in);
+                    } else if (action.equals("commit")) {
+                        DirectUpload.Commit.readFrom(in);
+                    } else {
+                        in.readUTF();
+                    }
+                    byte[] arguments = Arrays.copyOfRange(header.array(), start, header.limit() - bytes.available());
+                    decoded = control(action, arguments);
+                } else if (action.equals("list") || action.equals("stats")) {
+                    decoded = control(action, new byte[0]);
+                } else {
+                    throw new IOException("Action inconnue : " + action);
+                }
+                this.action = action;
+            } catch (EOFException e) {
+                header.position(header.limit()).limit(header.capacity());
+                return null;
+            }
+            header.position(header.limit() - bytes.available());
+            header.compact();
+            return decoded;
+        }
+
+        // Plage d'un fichier : taille du fichier (-1 s'il n'existe pas), nombre d'octets, octets
+        private Request range(MetadataCatalog.FileEntry entry, long offset, long length) {
+            if (entry == null) {
+                return new Download(this, Collections.emptyList(), ByteBuffer.allocate(8).putLong(0, -1));
+            }
+            List<MainServer.ChunkSlice> slices = offset < 0 || length < 0 ? Collections.emptyList()
+                    : MainServer.slicesOf(entry, offset, length);
+            long count = 0;
+            for (MainServer.ChunkSlice slice : slices) {
+                count += slice.to - slice.from;
+            }
+            return new Download(this, slices, ByteBuffer.allocate(16).putLong(0, entry.size).putLong(8, count));
+        }
+
+        // Exécute une action courte de MainServer hors du thread de la boucle
+        private Request control(String action, byte[] arguments) {
+            InetAddress peer = channel.socket().getInetAddress();
+            return new Reply(this, MainServer.submitAsync(() -> {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                MainServer.handleControl(action, peer, new DataInputStream(new ByteArrayInputStream(arguments)),
+                        new DataOutputStream(response));
+                return response.toByteArray();
+            }));
+        }
+
+        // Répond par le message (UTF) calculé par une tâche, hors du thread de la boucle
+        private Request reply(Callable<String> message) {
+            return new Reply(this, MainServer.submitAsync(() -> {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                new DataOutputStream(response).writeUTF(message.call());
+                return response.toByteArray();
+            }));
+        }
+    }
+
+    // Réponse calculée par une tâche, écrite au client une fois prête ; la connexion est
+    // ensuite fermée, comme avec ClientHandler
+    private static class Reply implements Request {
+        private final Connection connection;
+        private final CompletableFuture<byte[]> task;
+        private ByteBuffer output;
+
+        Reply(Connection connection, CompletableFuture<byte[]> task) {
+            this.connection = connection;
+            this.task = task;
+            connection.resumeWhenDone(task);
+        }
+
+        @Override
+        public void progress() throws IOException {
+            if (output == null) {
+                if (!task.isDone()) {
+                    connection.interest(0);
+                    return;
+                }
+                output = ByteBuffer.wrap(join(task));
+            }
+            if (connection.flush(output)) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    // Réception d'un fichier, à partir de session.received : chaque morceau, délimité par
+    // ContentChunker, est rempli au fil des lectures puis envoyé aux esclaves, avec au plus
+    // MainServer.pipelineDepth() morceaux en vol. Lorsque le pipeline est plein ou qu'aucun
+    // tampon n'est libre, la lecture est suspendue et le client ralenti par TCP.
+    // Pour un envoi groupé, les flux de l'envoi sont reçus ainsi l'un après l'autre.
+    private static class Upload implements Request {
+        private final Connection connection;
+        // Envoi groupé dont session est le flux en cours, ou null pour un envoi simple
+        private final BatchUpload batch;
+        private int segment;
+        private UploadSession session;
+        private ContentChunker chunker;
+        private final Deque<CompletableFuture<MetadataCatalog.ChunkRef>> inFlight = new ArrayDeque<>();
+        // Réponse à envoyer avant de recevoir le fichier (identifiant et position de reprise)
+        private ByteBuffer greeting;
+        private byte[] buffer;
+
+        Upload(Connection connection, UploadSession session, ByteBuffer greeting) {
+            this(connection, null, session, greeting);
+        }
+
+        Upload(Connection connection, BatchUpload batch) {
+            this(connection, batch, batch.segments.get(0), null);
+        }
+
+        private Upload(Connection connection, BatchUpload batch, UploadSession session, ByteBuffer greeting) {
+            this.connection = connection;
+            this.batch = batch;
+            this.session = session;
+            this.greeting = greeting;
+            this.chunker = MainServer.newChunker(session.fileSize - session.received);
+        }
+
+        @Override
+        public void progress() throws IOException {
+            if (greeting != null) {
+                if (!connection.flush(greeting)) {
+                    return;
+                }
+                greeting = null;
+            }
+            while (true) {
+                while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                    session.chunks.add(join(inFlight.poll()));
+                }
+
+                if (buffer == null && !chunker.hasMore()) {
+                    if (!inFlight.isEmpty()) {
+                        connection.interest(0);
+                        return;
+                    }
+                    if (batch != null && segment + 1 < batch.segments.size()) {
+                        session = batch.segments.get(++segment);
+                        chunker = MainServer.newChunker(session.fileSize);
+                        continue;
+                    }
+                    // Le fichier n'apparaît dans le catalogue qu'une fois tous ses morceaux enregistrés
+                    UploadSession finished = session;
+                    connection.request = connection.reply(() -> batch == null
+                            ? MainServer.finishUpload(finished) : MainServer.finishBatch(batch));
+                    connection.request.progress();
+                    return;
+                }
+
+                if (buffer == null) {
+                    if (inFlight.size() >= MainServer.pipelineDepth()) {
+                        connection.interest(0);
+                        return;
+                    }
+                    buffer = MainServer.tryAcquireChunkBuffer();
+                    if (buffer == null) {
+                        connection.waitForBuffer();
+                        return;
+                    }
+                    chunker.start(buffer);
+                }
+
+                // Octets déjà reçus avec l'en-tête, puis lecture directe dans le tampon du morceau
+                int length;
+                while ((length = chunker.cut()) < 0) {
+                    ByteBuffer header = connection.header;
+                    int count;
+                    if (header.position() > 0) {
+                        header.flip();
+                        count = Math.min(header.remaining(), chunker.readLength());
+                        header.get(buffer, chunker.readOffset(), count);
+                        header.compact();
+                    } else {
+                        count = connection.channel.read(ByteBuffer.wrap(buffer, chunker.readOffset(), chunker.readLength()));
+                        if (count < 0) {
+                            throw new EOFException("Client déconnecté pendant l'envoi de " + session.filename);
+                        }
+                        if (count == 0) {
+                            connection.interest(SelectionKey.OP_READ);
+                            return;
+                        }
+                    }
+                    chunker.filled(count);
+                }
+
+                session.append(buffer, length);
+                Metrics.add("client.bytes_in", length);
+                CompletableFuture<MetadataCatalog.ChunkRef> write = MainServer.writeChunk(buffer, length);
+                buffer = null;
+                inFlight.add(write);
+                connection.resumeWhenDone(write);
+            }
+        }
+
+        // Les envois en vol rendent eux-mêmes leurs tampons ; l'envoi est ensuite gardé pour
+        // une reprise ou libéré, hors du thread de la boucle
+        @Override
+        public void release() {
+            if (buffer != null) {
+                MainServer.releaseChunkBuffer(buffer);
+                buffer = null;
+            }
+            List<CompletableFuture<MetadataCatalog.ChunkRef>> pending = new ArrayList<>(inFlight);
+            UploadSession interrupted = session;
+            MainServer.submitAsync(() -> {
+                if (batch == null) {
+                    MainServer.interruptUpload(interrupted, pending);
+                } else {
+                    MainServer.interruptBatch(batch, interrupted, pending);
+                }
+                return null;
+            });
+        }
+    }
+
+    // Envoi d'un fichier ou d'une plage au client, après l'en-tête de la réponse : les
+    // morceaux sont préchargés sur MainServer.pipelineDepth() esclaves et leurs portions
+    // écrites dans l'ordre dès que le client les accepte
+    private static class Download implements Request {
+        private final Connection connection;
+        private final List<MainServer.ChunkSlice> slices;
+        private final Deque<CompletableFuture<MainServer.ChunkData>> inFlight = new ArrayDeque<>();
+        private int nextSlice;
+        private int written;
+        private ByteBuffer output;
+        private MainServer.ChunkData current;
+
+        Download(Connection connection, List<MainServer.ChunkSlice> slices, ByteBuffer header) {
+            this.connection = connection;
+            this.slices = slices;
+            this.output = header;
+        }
+
+        @Override
+        public void progress() throws IOException {
+            while (true) {
+                if (output != null) {
+                    if (!connection.flush(output)) {
+                        return;
+                    }
+                    output = null;
+                    if (current != null) {
+                        MainServer.releaseChunkBuffer(current.buffer);
+                        current = null;
+                    }
+                }
+                if (written == slices.size()) {
+                    connection.close();
+                    return;
+                }
+
+                // Garder le pipeline plein, dans l'ordre des morceaux, avec les tampons libres
+                while (nextSlice < slices.size() && inFlight.size() < MainServer.pipelineDepth()) {
+                    byte[] buffer = MainServer.tryAcquireChunkBuffer();
+                    if (buffer == null) {
+                        break;
+                    }
+                    CompletableFuture<MainServer.ChunkData> read = MainServer.readChunk(slices.get(nextSlice++).chunk, buffer);
+                    inFlight.add(read);
+                    connection.resumeWhenDone(read);
+                }
+                if (inFlight.isEmpty()) {
+                    connection.waitForBuffer();
+                    return;
+                }
+                if (!inFlight.peek().isDone()) {
+                    connection.interest(0);
+                    return;
+                }
+
+                current = join(inFlight.poll());
+                MainServer.ChunkSlice slice = slices.get(written++);
+                if (current.length != slice.chunk.length) {
+                    throw new IOException("Taille inattendue pour " + slice.chunk.key + " : " + current.length);
+                }
+                output = ByteBuffer.wrap(current.buffer, slice.from, slice.to - slice.from);
+                Metrics.add("client.bytes_out", slice.to - slice.from);
+            }
+        }
+
+        // Les lectures en vol rendent leurs tampons dès qu'elles se terminent
+        @Override
+        public void release() {
+            if (current != null) {
+                MainServer.releaseChunkBuffer(current.buffer);
+                current = null;
+            }
+            for (CompletableFuture<MainServer.ChunkData> read : inFlight) {
+                read.whenComplete((data, error) -> {
+                    if (data != null) {
+                        MainServer.releaseChunkBuffer(data.buffer);
+                    }
+                });
+            }
+            inFlight.clear();
+        }
+    }
+
+    // Résultat d'une tâche terminée ; son erreur est relancée en IOException
+    private static <T> T join(CompletableFuture<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // déjà fermée
+        }
+    }
+}
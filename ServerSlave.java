@@ -1,159 +1,689 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 
 public class ServerSlave {
     private static int PORT;
     private static String STORAGE_PATH;
+    // Modèle d'exécution (EXECUTION_MODE), connexions simultanées (SLAVE_MAX_CONNECTIONS)
+    // et file d'attente TCP (SLAVE_BACKLOG)
+    private static String EXECUTION_MODE = "pool";
+    private static int MAX_CONNECTIONS = 256;
+    private static int BACKLOG = 50;
+    // Taille des tampons de lecture et d'écriture sur le réseau
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // En-tête d'un fichier de partie : codec (byte) et CRC32C des octets qui suivent (int)
+    private static final int PART_HEADER_SIZE = 5;
+    // Serveur principal, prévenu des parties corrompues trouvées par la vérification de fond
+    private static String MAIN_SERVER_IP;
+    private static int MAIN_SERVER_PORT;
+    // Débit de la vérification de fond (SCRUB_RATE_MB par seconde, 0 pour la désactiver)
+    // et pause entre deux passes (SCRUB_INTERVAL_MIN)
+    private static long SCRUB_RATE = 4L * 1024 * 1024;
+    private static long SCRUB_INTERVAL_MS = TimeUnit.MINUTES.toMillis(60);
 
     public static void main(String[] args) {
-        // Charger la configuration
+        // Charger la configuration ; un port passé en argument remplace SLAVE_PORT,
+        // ce qui permet de lancer plusieurs esclaves sur la même machine
         loadConfig();
+        if (args.length > 0) {
+            PORT = Integer.parseInt(args[0]);
+        }
+
+        PartStore store;
+        try {
+            store = new PartStore(new File(STORAGE_PATH + PORT));
+        } catch (IOException e) {
+            System.err.println("Impossible de charger le stockage des parties : " + e.getMessage());
+            return;
+        }
+
+        ConnectionDispatcher dispatcher = new ConnectionDispatcher("slave", EXECUTION_MODE, MAX_CONNECTIONS);
+        Metrics.gauge("connections.active", dispatcher::activeConnections);
+        Metrics.gauge("connections.queued", dispatcher::queuedConnections);
+        Metrics.gauge("parts.stored", store::size);
 
-        File storageDir = new File(STORAGE_PATH + PORT);
-        if (!storageDir.exists()) {
-            storageDir.mkdirs();
+        if (SCRUB_RATE > 0) {
+            Thread scrubber = new Thread(new Scrubber(store), "scrubber");
+            scrubber.setDaemon(true);
+            scrubber.setPriority(Thread.MIN_PRIORITY);
+            scrubber.start();
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Serveur esclave en écoute sur le port " + PORT);
+        // Canaux NIO (en mode bloquant) pour pouvoir utiliser transferTo sur les sockets
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT), BACKLOG);
+            System.out.println("Serveur esclave en écoute sur le port " + PORT + " ("
+                    + (dispatcher.isVirtual() ? "threads virtuels" : "pool de threads") + ", "
+                    + MAX_CONNECTIONS + " connexions simultanées au plus, "
+                    + store.names().size() + " parties stockées)");
 
             while (true) {
-                Socket socket = serverSocket.accept();
-                new ClientHandler(socket, storageDir).start();
+                // Chaque connexion du serveur principal occupe un créneau tant qu'elle reste ouverte
+                dispatcher.awaitSlot();
+                SocketChannel channel = serverChannel.accept();
+                dispatcher.dispatch(new ClientHandler(channel, store));
             }
         } catch (IOException e) {
             System.err.println("Erreur serveur esclave: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private static void loadConfig() {
+        SortedMap<Integer, String> slaves = new TreeMap<>();
         try (BufferedReader reader = new BufferedReader(new FileReader("config.txt"))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                if (line.startsWith("SLAVE_PORT")) {
+                if (line.matches("SLAVE\\d+_IP\\s*=.*")) {
+                    int number = Integer.parseInt(line.substring("SLAVE".length(), line.indexOf("_IP")));
+                    slaves.put(number, line.split("=")[1].trim());
+                } else if (line.startsWith("SLAVE_PORT")) {
                     PORT = Integer.parseInt(line.split("=")[1].trim());
                 } else if (line.startsWith("SERVER_SLAVE_STORAGE_PATH")) {
                     STORAGE_PATH = line.split("=")[1].trim();
+                } else if (line.startsWith("EXECUTION_MODE")) {
+                    EXECUTION_MODE = line.split("=")[1].trim();
+                } else if (line.startsWith("SLAVE_MAX_CONNECTIONS")) {
+                    MAX_CONNECTIONS = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("SLAVE_BACKLOG")) {
+                    BACKLOG = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("MAIN_SERVER_IP")) {
+                    MAIN_SERVER_IP = line.split("=")[1].trim();
+                } else if (line.startsWith("MAIN_SERVER_PORT")) {
+                    MAIN_SERVER_PORT = Integer.parseInt(line.split("=")[1].trim());
+                } else if (line.startsWith("SCRUB_RATE_MB")) {
+                    SCRUB_RATE = Long.parseLong(line.split("=")[1].trim()) * 1024 * 1024;
+                } else if (line.startsWith("SCRUB_INTERVAL_MIN")) {
+                    SCRUB_INTERVAL_MS = TimeUnit.MINUTES.toMillis(Long.parseLong(line.split("=")[1].trim()));
                 }
             }
         } catch (IOException e) {
             System.err.println("Erreur lors du chargement de la configuration : " + e.getMessage());
         }
+        // Adresses comme les écrit le serveur principal : "hôte:port", SLAVE_PORT par défaut
+        Map<String, SlavePool> peers = new LinkedHashMap<>();
+        for (String slave : slaves.values()) {
+            String[] address = slave.split(":");
+            SlavePool pool = new SlavePool(address[0], address.length > 1 ? Integer.parseInt(address[1]) : PORT);
+            peers.put(pool.getAddress(), pool);
+        }
+        PEERS = Collections.unmodifiableMap(peers);
+    }
+
+    // Flux tamponné qui permet de récupérer les octets déjà lus d'avance, afin de
+    // poursuivre la lecture directement sur le canal sans perdre de données
+    private static class ChannelInputStream extends BufferedInputStream {
+        ChannelInputStream(SocketChannel channel) {
+            super(Channels.newInputStream(channel), BUFFER_SIZE);
+        }
+
+        // Copie au plus target.remaining() octets du tampon interne vers target
+        synchronized int drain(ByteBuffer target) {
+            int available = Math.min(count - pos, target.remaining());
+            target.put(buf, pos, available);
+            pos += available;
+            return available;
+        }
+    }
+
+    // Connexions vers les esclaves de la configuration (clés SLAVEn_IP), par adresse : la
+    // réplication en chaîne ne s'adresse qu'à eux
+    private static Map<String, SlavePool> PEERS = Collections.emptyMap();
+
+    // Transmission d'une partie à la réplique suivante de la chaîne pendant sa réception.
+    // Une erreur vers la réplique suivante n'interrompt pas l'écriture locale : elle est
+    // seulement reportée dans les statuts renvoyés au serveur principal.
+    private static class Replication {
+        private final SlavePool slave;
+        private final int replicaCount;
+        private final byte[] heapBuffer = new byte[BUFFER_SIZE];
+        private SlavePool.Connection connection;
+        private int requestId;
+
+        private Replication(SlavePool slave, int replicaCount) {
+            this.slave = slave;
+            this.replicaCount = replicaCount;
+        }
+
+        static Replication start(String partName, byte codec, int checksum, long partSize, List<String> forwards) {
+            Replication replication = new Replication(PEERS.get(forwards.get(0)), forwards.size());
+            try {
+                replication.connection = replication.slave.borrow();
+                replication.requestId = replication.connection.request(SlaveProtocol.OP_PUT);
+                replication.connection.out.writeUTF(partName);
+                replication.connection.out.writeByte(codec);
+                replication.connection.out.writeInt(checksum);
+                replication.connection.out.writeLong(partSize);
+                replication.connection.out.writeInt(forwards.size() - 1);
+                for (String forward : forwards.subList(1, forwards.size())) {
+                    replication.connection.out.writeUTF(forward);
+                }
+            } catch (IOException e) {
+                replication.fail(e);
+            }
+            return replication;
+        }
+
+        void forward(ByteBuffer block) {
+            if (connection == null) {
+                return;
+            }
+            try {
+                while (block.hasRemaining()) {
+                    int length = Math.min(block.remaining(), heapBuffer.length);
+                    block.get(heapBuffer, 0, length);
+                    connection.out.write(heapBuffer, 0, length);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // Attend l'accusé de la réplique suivante et renvoie les statuts de toute la suite de la chaîne
+        byte[] finish() {
+            byte[] statuses = new byte[replicaCount];
+            Arrays.fill(statuses, SlaveProtocol.STATUS_ERROR);
+            if (connection == null) {
+                return statuses;
+            }
+            try {
+                statuses[0] = connection.awaitResponse(requestId);
+                int forwarded = connection.in.readInt();
+                byte[] downstream = new byte[forwarded];
+                connection.in.readFully(downstream);
+                System.arraycopy(downstream, 0, statuses, 1, Math.min(forwarded, replicaCount - 1));
+                slave.release(connection);
+            } catch (IOException e) {
+                connection.close();
+                System.err.println("Réplication vers " + slave.getAddress() + " en échec : " + e.getMessage());
+            }
+            connection = null;
+            return statuses;
+        }
+
+        void abort() {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+
+        private void fail(IOException e) {
+            System.err.println("Réplication vers " + slave.getAddress() + " en échec : " + e.getMessage());
+            abort();
+        }
+    }
+
+    // Une partie enregistrée est-elle lisible et conforme au CRC32C de son en-tête ?
+    private static boolean isIntact(File file) {
+        try {
+            return checksumMatches(file, ByteBuffer.allocate(BUFFER_SIZE), count -> {
+            });
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Relit une partie à travers buffer et compare son CRC32C à celui de son en-tête ;
+    // throttle reçoit la taille de chaque bloc lu. Une partie sans en-tête complet est altérée.
+    private static boolean checksumMatches(File file, ByteBuffer buffer, Throttle throttle) throws IOException, InterruptedException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(PART_HEADER_SIZE);
+            if (fileChannel.read(header, 0) != PART_HEADER_SIZE) {
+                return false;
+            }
+            CRC32C crc = new CRC32C();
+            long position = PART_HEADER_SIZE;
+            int count;
+            buffer.clear();
+            while ((count = fileChannel.read(buffer, position)) > 0) {
+                position += count;
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+                throttle.pause(count);
+            }
+            return (int) crc.getValue() == header.getInt(1);
+        }
+    }
+
+    private interface Throttle {
+        void pause(int count) throws InterruptedException;
+    }
+
+    // Vérification de fond des parties stockées : chaque passe relit toutes les parties et
+    // recalcule leur CRC32C. Une partie altérée est signalée au serveur principal (action
+    // "repair"), qui la réécrit à partir d'une réplique saine : elle est gardée jusque-là, car
+    // elle peut être le seul exemplaire du morceau, et la partie reçue la remplace (voir
+    // handleReceiveFile). Le thread a la priorité
+    // la plus basse et s'endort dès qu'il dépasse SCRUB_RATE octets par seconde, pour laisser
+    // le disque aux transferts.
+    private static class Scrubber implements Runnable {
+        private final PartStore store;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long passStart;
+        private long passBytes;
+
+        Scrubber(PartStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(Math.max(1000, SCRUB_INTERVAL_MS));
+                    scrub();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void scrub() throws InterruptedException {
+            List<String> names = store.names();
+            passStart = System.nanoTime();
+            passBytes = 0;
+            int corrupted = 0;
+            for (String name : names) {
+                Metrics.increment("scrub.parts");
+                if (!verify(store.fileOf(name))) {
+                    corrupted++;
+                    Metrics.increment("scrub.corrupted");
+                    System.err.println("Partie " + name + " altérée sur le disque, signalée pour réparation.");
+                    report(name);
+                }
+            }
+            Metrics.increment("scrub.passes");
+            System.out.println("Vérification de " + names.size() + " parties terminée : "
+                    + corrupted + " altérée(s).");
+        }
+
+        // Relit une partie et compare son CRC32C à celui de son en-tête ; une partie supprimée
+        // entre-temps ou illisible pour une autre raison n'est pas considérée comme altérée
+        private boolean verify(File file) throws InterruptedException {
+            try {
+                return checksumMatches(file, buffer, this::throttle);
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                System.err.println("Vérification de " + file.getName() + " impossible : " + e.getMessage());
+                return true;
+            }
+        }
+
+        // Dort le temps nécessaire pour ne pas dépasser SCRUB_RATE octets par seconde
+        private void throttle(int count) throws InterruptedException {
+            passBytes += count;
+            Metrics.add("scrub.bytes", count);
+            long dueNanos = (long) (passBytes * 1e9 / SCRUB_RATE);
+            long aheadNanos = dueNanos - (System.nanoTime() - passStart);
+            if (aheadNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            }
+        }
+
+        // Demande au serveur principal de réécrire la partie à partir d'une autre réplique
+        private void report(String partName) {
+            try (Socket socket = new Socket(MAIN_SERVER_IP, MAIN_SERVER_PORT);
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                out.writeUTF("repair");
+                out.writeUTF(partName);
+                out.flush();
+                System.out.println(in.readUTF());
+            } catch (IOException e) {
+                System.err.println("Impossible de signaler " + partName + " au serveur principal : " + e.getMessage());
+            }
+        }
     }
 
     // Classe pour gérer chaque client connecté au serveur esclave
-    private static class ClientHandler extends Thread {
-        private Socket socket;
-        private File storageDir;
+    private static class ClientHandler implements Runnable {
+        private SocketChannel channel;
+        private PartStore store;
+        private ChannelInputStream channelInputStream;
+        // Tampon hors tas réutilisé pour recevoir les parties sans copie dans le tas Java
+        private final ByteBuffer directBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
-        public ClientHandler(Socket socket, File storageDir) {
-            this.socket = socket;
-            this.storageDir = storageDir;
+        public ClientHandler(SocketChannel channel, PartStore store) {
+            this.channel = channel;
+            this.store = store;
         }
 
+        // Sert les requêtes du serveur principal les unes après les autres sur la même
+        // connexion, jusqu'à ce qu'il la ferme.
         @Override
         public void run() {
-            try (InputStream inputStream = socket.getInputStream();
-                 OutputStream outputStream = socket.getOutputStream()) {
+            try (ChannelInputStream inputStream = new ChannelInputStream(channel);
+                 OutputStream outputStream = Channels.newOutputStream(channel)) {
 
+                channelInputStream = inputStream;
                 DataInputStream dataInputStream = new DataInputStream(inputStream);
-                DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
 
-                String action = dataInputStream.readUTF();
+                while (true) {
+                    int requestId;
+                    try {
+                        requestId = dataInputStream.readInt();
+                    } catch (EOFException e) {
+                        break; // Connexion fermée par le serveur principal
+                    }
+                    byte opcode = dataInputStream.readByte();
+                    long start = System.nanoTime();
 
-                if (action.equals("send")) {
-                    handleReceiveFile(dataInputStream);
-                } else if (action.equals("get")) {
-                    handleSendFile(dataInputStream, dataOutputStream);
-                } else if (action.equals("delete")) {
-                    handleDeleteFile(dataInputStream, dataOutputStream);
-                } else if (action.equals("list")) {
-                    handleListFiles(dataOutputStream);
+                    String operation;
+                    if (opcode == SlaveProtocol.OP_PUT) {
+                        operation = "op.put";
+                        handleReceiveFile(requestId, dataInputStream, dataOutputStream);
+                    } else if (opcode == SlaveProtocol.OP_GET) {
+                        operation = "op.get";
+                        handleSendFile(requestId, dataInputStream, dataOutputStream);
+                    } else if (opcode == SlaveProtocol.OP_DELETE) {
+                        operation = "op.delete";
+                        handleDeleteFile(requestId, dataInputStream, dataOutputStream);
+                    } else if (opcode == SlaveProtocol.OP_LIST) {
+                        operation = "op.list";
+                        handleListFiles(requestId, dataOutputStream);
+                    } else if (opcode == SlaveProtocol.OP_STATS) {
+                        operation = "op.stats";
+                        handleStats(requestId, dataOutputStream);
+                    } else if (opcode == SlaveProtocol.OP_STAT) {
+                        operation = "op.stat";
+                        handleStatFile(requestId, dataInputStream, dataOutputStream);
+                    } else {
+                        // Impossible de se resynchroniser sur le flux : abandonner la connexion
+                        System.err.println("Opération inconnue reçue par le serveur esclave : " + opcode);
+                        break;
+                    }
+                    Metrics.recordSince(operation, start);
+
+                    // Tant que d'autres requêtes sont déjà arrivées, regrouper les réponses
+                    if (dataInputStream.available() == 0) {
+                        dataOutputStream.flush();
+                    }
                 }
+                dataOutputStream.flush();
 
             } catch (IOException e) {
                 System.err.println("Erreur de traitement du client sur serveur esclave: " + e.getMessage());
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // canal déjà fermé
+                }
             }
         }
 
-        // Gère la réception et le stockage des fichiers envoyés par le serveur principal
-        private void handleReceiveFile(DataInputStream dataInputStream) throws IOException {
-            String filename = dataInputStream.readUTF();
-            int partNumber = dataInputStream.readInt();
+        private void writeResponse(DataOutputStream dataOutputStream, int requestId, byte status) throws IOException {
+            dataOutputStream.writeInt(requestId);
+            dataOutputStream.writeByte(status);
+        }
+
+        // Gère la réception et le stockage des fichiers envoyés par le serveur principal.
+        // Les octets passent du canal réseau au FileChannel à travers un tampon direct, sans
+        // copie dans le tas ; en cas d'erreur d'écriture, le reste de la partie est tout de
+        // même lu pour garder le flux synchronisé.
+        //
+        // Le fichier commence par un en-tête (codec de la partie, brute ou compressée, et son
+        // CRC32C), suivi des octets tels qu'ils ont été reçus. Le CRC32C est calculé sur chaque
+        // bloc au passage ; la partie est écrite sous un nom temporaire propre à cette réception
+        // et n'est enregistrée qu'une fois complète et conforme à la somme annoncée (et, pour
+        // un morceau entier, à l'empreinte de sa clé), sinon elle est rejetée. Une partie déjà
+        // présente et intacte n'est jamais remplacée : deux réceptions simultanées de la même
+        // partie aboutissent toutes deux, et seule une partie altérée peut être réécrite.
+        //
+        // Si d'autres répliques sont demandées, chaque bloc reçu est aussitôt retransmis à la
+        // suivante de la chaîne, qui fait de même ; la réponse donne le statut de chaque réplique.
+        // Une chaîne qui passe par un esclave absent de config.txt est refusée en entier.
+        private void handleReceiveFile(int requestId, DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String partName = dataInputStream.readUTF();
+            byte codec = dataInputStream.readByte();
+            int checksum = dataInputStream.readInt();
             long partSize = dataInputStream.readLong();
-            byte[] partData = new byte[(int) partSize];
-            dataInputStream.readFully(partData);
+            int forwardCount = dataInputStream.readInt();
+            if (forwardCount < 0 || forwardCount > PEERS.size()) {
+                // Impossible de savoir où commencent les octets de la partie : abandonner la connexion
+                throw new IOException("Nombre de répliques suivantes invalide pour " + partName + " : " + forwardCount);
+            }
+            List<String> forwards = new ArrayList<>(forwardCount);
+            for (int i = 0; i < forwardCount; i++) {
+                forwards.add(dataInputStream.readUTF());
+            }
+            // Une chaîne ne passe que par les esclaves de la configuration
+            boolean forwardable = PEERS.keySet().containsAll(forwards);
 
-            File file = new File(storageDir, filename + ".part" + partNumber);
-            try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-                fileOutputStream.write(partData);
+            File file = null;
+            FileChannel fileChannel = null;
+            boolean stored = PartStore.isValidName(partName) && forwardable;
+            if (!forwardable) {
+                System.err.println("Partie " + partName + " refusée : répliques suivantes hors de la configuration " + forwards);
+            } else if (!stored) {
+                System.err.println("Nom de partie refusé : " + partName);
+            } else {
+                try {
+                    file = store.newPartialFile(partName);
+                    fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                    fileChannel.write(ByteBuffer.allocate(PART_HEADER_SIZE).put(codec).putInt(checksum).flip());
+                } catch (IOException e) {
+                    System.err.println("Impossible de créer la partie " + partName + " : " + e.getMessage());
+                    stored = false;
+                }
             }
-        }
 
-        // Gère l'envoi d'un fichier complet au client
-        private void handleSendFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
-            String filename = dataInputStream.readUTF();
-            File file = new File(storageDir, filename);
-            if (file.exists()) {
-                dataOutputStream.writeUTF("found");
-                dataOutputStream.writeLong(file.length());
-                try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                    byte[] buffer = new byte[1024];
-                    int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        dataOutputStream.write(buffer, 0, bytesRead);
+            // Un morceau entier est nommé par l'empreinte de son contenu, qu'un client en transfert
+            // direct pourrait falsifier : elle est vérifiée avant l'enregistrement
+            ChunkCodec.Fingerprint fingerprint = stored && ChunkCodec.isKey(partName) ? new ChunkCodec.Fingerprint(codec) : null;
+            Replication next = forwards.isEmpty() || !forwardable ? null : Replication.start(partName, codec, checksum, partSize, forwards);
+
+            CRC32C crc = new CRC32C();
+            long remaining = partSize;
+            try {
+                while (remaining > 0) {
+                    directBuffer.clear();
+                    if (directBuffer.capacity() > remaining) {
+                        directBuffer.limit((int) remaining);
                     }
-                }
-            } else {
-                dataOutputStream.writeUTF("not found");
-            }
-        }
-
-        private void handleDeleteFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
-            String baseName = dataInputStream.readUTF(); // Nom de base du fichier (ex. "test.txt")
-            boolean allDeleted = true; // Indique si toutes les suppressions ont réussi
-            boolean atLeastOneFound = false; // Indique si au moins un fichier a été trouvé
-        
-            // Lister les fichiers dans le répertoire de stockage
-            File[] files = storageDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    // Vérifie si le fichier correspond au nom de base
-                    if (file.getName().startsWith(baseName)) {
-                        atLeastOneFound = true; // Au moins un fichier trouvé
-                        System.out.println("Suppression du fichier : " + file.getAbsolutePath());
-                        if (!file.delete()) {
-                            System.out.println("Erreur lors de la suppression du fichier : " + file.getAbsolutePath());
-                            allDeleted = false; // Échec si un fichier ne peut pas être supprimé
+                    // D'abord les octets déjà tamponnés avec l'en-tête, puis le canal lui-même
+                    int bytesRead = channelInputStream.drain(directBuffer);
+                    if (bytesRead == 0) {
+                        bytesRead = channel.read(directBuffer);
+                    }
+                    if (bytesRead == -1) {
+                        throw new EOFException("Partie incomplète : " + remaining + " octets manquants.");
+                    }
+                    directBuffer.flip();
+                    crc.update(directBuffer.duplicate());
+                    if (fingerprint != null) {
+                        fingerprint.update(directBuffer.duplicate());
+                    }
+                    if (next != null) {
+                        next.forward(directBuffer.duplicate());
+                    }
+                    if (stored) {
+                        try {
+                            while (directBuffer.hasRemaining()) {
+                                fileChannel.write(directBuffer);
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Erreur d'écriture de " + file.getAbsolutePath() + " : " + e.getMessage());
+                            stored = false;
                         }
                     }
+                    remaining -= bytesRead;
+                }
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println("Partie " + partName + " reçue altérée (CRC32C incorrect), rejetée.");
+                    stored = false;
+                } else if (fingerprint != null && !fingerprint.matches(partName)) {
+                    System.err.println("Partie " + partName + " reçue sans correspondre à sa clé, rejetée.");
+                    stored = false;
+                }
+                if (stored) {
+                    fileChannel.close();
+                    // Une partie déjà présente est gardée, sauf si elle est altérée
+                    if (!store.commit(partName, file) && !isIntact(store.fileOf(partName))) {
+                        System.err.println("Partie " + partName + " altérée, remplacée par celle reçue.");
+                        store.replace(partName, file);
+                    }
+                }
+            } catch (IOException e) {
+                if (remaining > 0) {
+                    throw e;
+                }
+                System.err.println("Impossible d'enregistrer " + partName + " : " + e.getMessage());
+                stored = false;
+            } finally {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+                if (fingerprint != null) {
+                    fingerprint.end();
+                }
+                if (file != null) {
+                    file.delete();
+                }
+                if (remaining > 0 && next != null) {
+                    next.abort();
                 }
             }
-        
-            // Envoyer la réponse au serveur principal
-            if (atLeastOneFound) {
-                if (allDeleted) {
-                    System.out.println("Tous les fichiers liés à " + baseName + " ont été supprimés avec succès.");
-                    dataOutputStream.writeUTF("Fichiers supprimés avec succès.");
-                } else {
-                    System.out.println("Certaines parties de " + baseName + " n'ont pas pu être supprimées.");
-                    dataOutputStream.writeUTF("Échec de la suppression de certains fichiers.");
+
+            Metrics.add("bytes_in", partSize);
+            if (!stored) {
+                Metrics.increment("op.put.errors");
+            }
+            byte[] forwardStatuses = new byte[forwards.size()];
+            Arrays.fill(forwardStatuses, SlaveProtocol.STATUS_ERROR);
+            if (next != null) {
+                forwardStatuses = next.finish();
+            }
+            writeResponse(dataOutputStream, requestId, stored ? SlaveProtocol.STATUS_OK : SlaveProtocol.STATUS_ERROR);
+            dataOutputStream.writeInt(forwardStatuses.length);
+            dataOutputStream.write(forwardStatuses);
+        }
+
+        // Gère l'envoi d'une partie au serveur principal, avec son codec et son CRC32C : une
+        // partie compressée est envoyée compressée, et c'est le serveur principal qui vérifie
+        // la somme en recevant. Le contenu est transmis par FileChannel.transferTo (sendfile),
+        // sans passer par l'espace utilisateur.
+        private void handleSendFile(int requestId, DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String filename = dataInputStream.readUTF();
+            if (!store.contains(filename)) {
+                Metrics.increment("op.get.not_found");
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_NOT_FOUND);
+                return;
+            }
+
+            FileChannel fileChannel;
+            try {
+                fileChannel = FileChannel.open(store.fileOf(filename).toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                Metrics.increment("op.get.not_found");
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_NOT_FOUND); // supprimée entre-temps
+                return;
+            }
+            try (fileChannel) {
+                ByteBuffer header = ByteBuffer.allocate(PART_HEADER_SIZE);
+                if (fileChannel.read(header, 0) != PART_HEADER_SIZE) {
+                    writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_ERROR);
+                    return;
                 }
-            } else {
-                System.out.println("Aucun fichier trouvé correspondant au nom de base : " + baseName);
-                dataOutputStream.writeUTF("Aucun fichier trouvé.");
+                long size = fileChannel.size();
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_OK);
+                dataOutputStream.writeByte(header.get(0));
+                dataOutputStream.writeInt(header.getInt(1));
+                dataOutputStream.writeLong(size - PART_HEADER_SIZE);
+                dataOutputStream.flush(); // L'en-tête doit partir avant les données envoyées par le canal
+
+                long position = PART_HEADER_SIZE;
+                while (position < size) {
+                    position += fileChannel.transferTo(position, size - position, channel);
+                }
+                Metrics.add("bytes_out", size - PART_HEADER_SIZE);
             }
         }
-        
 
-        // Liste les fichiers présents sur le serveur esclave
-        private void handleListFiles(DataOutputStream dataOutputStream) throws IOException {
-            File[] files = storageDir.listFiles();
-            dataOutputStream.writeInt(files != null ? files.length : 0);
-            if (files != null) {
-                for (File file : files) {
-                    dataOutputStream.writeUTF(file.getName());
+        // Décrit une partie sans l'envoyer : codec, CRC32C, taille enregistrée et taille une fois
+        // décodée, que le serveur principal compare à celle attendue avant d'accepter une
+        // écriture confirmée par un client en transfert direct
+        private void handleStatFile(int requestId, DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String partName = dataInputStream.readUTF();
+            if (!store.contains(partName)) {
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_NOT_FOUND);
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(PART_HEADER_SIZE);
+            long size;
+            long decodedSize;
+            try (FileChannel fileChannel = FileChannel.open(store.fileOf(partName).toPath(), StandardOpenOption.READ)) {
+                if (fileChannel.read(header, 0) != PART_HEADER_SIZE) {
+                    throw new EOFException("en-tête incomplet");
                 }
+                size = fileChannel.size() - PART_HEADER_SIZE;
+                decodedSize = ChunkCodec.decodedSize(header.get(0), size, new BufferedInputStream(
+                        Channels.newInputStream(fileChannel.position(PART_HEADER_SIZE)), BUFFER_SIZE));
+            } catch (NoSuchFileException e) {
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_NOT_FOUND); // supprimée entre-temps
+                return;
+            } catch (IOException e) {
+                System.err.println("Impossible de décrire la partie " + partName + " : " + e.getMessage());
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_ERROR);
+                return;
+            }
+            writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_OK);
+            dataOutputStream.writeByte(header.get(0));
+            dataOutputStream.writeInt(header.getInt(1));
+            dataOutputStream.writeLong(size);
+            dataOutputStream.writeLong(decodedSize);
+        }
+
+        // Supprime une partie désignée par son nom exact
+        private void handleDeleteFile(int requestId, DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+            String partName = dataInputStream.readUTF(); // Empreinte du morceau
+
+            // Envoyer la réponse au serveur principal
+            if (!store.contains(partName)) {
+                System.out.println("Aucun fichier trouvé correspondant au nom : " + partName);
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_NOT_FOUND);
+            } else if (store.delete(partName)) {
+                System.out.println("Suppression du fichier : " + partName);
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_OK);
+            } else {
+                System.out.println("Erreur lors de la suppression du fichier : " + store.fileOf(partName).getAbsolutePath());
+                writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_ERROR);
+            }
+        }
+
+        // Liste les parties présentes sur le serveur esclave, d'après l'index en mémoire
+        private void handleListFiles(int requestId, DataOutputStream dataOutputStream) throws IOException {
+            List<String> names = store.names();
+            writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_OK);
+            dataOutputStream.writeInt(names.size());
+            for (String name : names) {
+                dataOutputStream.writeUTF(name);
+            }
+        }
+
+        // Métriques de l'esclave, relayées par l'action "stats" du serveur principal
+        private void handleStats(int requestId, DataOutputStream dataOutputStream) throws IOException {
+            Map<String, Long> stats = Metrics.snapshot();
+            writeResponse(dataOutputStream, requestId, SlaveProtocol.STATUS_OK);
+            dataOutputStream.writeInt(stats.size());
+            for (Map.Entry<String, Long> stat : stats.entrySet()) {
+                dataOutputStream.writeUTF(stat.getKey());
+                dataOutputStream.writeLong(stat.getValue());
             }
         }
     }
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pool de connexions persistantes vers un serveur esclave.
+// Les connexions sont réutilisées d'une requête à l'autre pour éviter une poignée
+// de main TCP (et un TIME_WAIT) par partie transférée.
+class SlavePool {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Nombre maximal de connexions inactives conservées pour cet esclave
+    private static final int MAX_IDLE = 8;
+    // Une connexion inactive depuis plus longtemps est fermée plutôt que réutilisée
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    // Durée comptée pour un échange en échec dans la moyenne des temps de réponse
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String host;
+    private final int port;
+    private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+    // Échanges en cours et durée moyenne (moyenne mobile exponentielle) d'un échange,
+    // utilisés pour choisir la réplique la moins chargée lors d'une lecture
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long averageNanos;
+
+    SlavePool(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    // Estimation du temps d'attente d'un nouvel échange : plus elle est basse, meilleur est l'esclave
+    double loadScore() {
+        return (averageNanos + 1) * (1.0 + inFlight.get());
+    }
+
+    long averageNanos() {
+        return averageNanos;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private void recordLatency(long nanos) {
+        long average = averageNanos;
+        averageNanos = average == 0 ? nanos : (average * 4 + nanos) / 5;
+    }
+
+    // Emprunte une connexion inactive ou en ouvre une nouvelle
+    Connection borrow() throws IOException {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (!connection.isExpired()) {
+                return connection;
+            }
+            connection.close();
+        }
+        return new Connection();
+    }
+
+    // Rend une connexion dont le dernier échange s'est terminé proprement
+    void release(Connection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        connection.reused = true;
+        if (idle.size() >= MAX_IDLE || !idle.offerFirst(connection)) {
+            connection.close();
+        }
+    }
+
+    // Exécute un échange complet sur une connexion du pool. Si une connexion réutilisée
+    // s'avère coupée (esclave redémarré), l'échange est rejoué une fois sur une connexion neuve.
+    // Sa durée et son issue sont comptées dans les métriques rpc.<adresse>.<operation>.
+    <T> T execute(String operation, SlaveCall<T> call) throws IOException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        inFlight.incrementAndGet();
+        try {
+            Connection connection = borrow();
+            try {
+                T result = call.call(connection);
+                release(connection);
+                succeeded = true;
+                return result;
+            } catch (IOException e) {
+                connection.close();
+                if (!connection.reused) {
+                    throw e;
+                }
+            }
+
+            connection = new Connection();
+            try {
+                T result = call.call(connection);
+                release(connection);
+                succeeded = true;
+                return result;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        } finally {
+            inFlight.decrementAndGet();
+            // Un échec rapide (esclave arrêté) ne doit pas faire paraître l'esclave rapide
+            long elapsed = System.nanoTime() - start;
+            recordLatency(succeeded ? elapsed : Math.max(elapsed, FAILURE_PENALTY_NANOS));
+            Metrics.recordRequest("rpc." + getAddress() + "." + operation, start, !succeeded);
+        }
+    }
+
+    // Ferme toutes les connexions inactives
+    void closeIdle() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    interface SlaveCall<T> {
+        T call(Connection connection) throws IOException;
+    }
+
+    // Connexion persistante vers l'esclave, utilisée par un seul thread à la fois
+    class Connection implements Closeable {
+        private final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private int nextRequestId;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean reused;
+
+        private Connection() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+
+        // Écrit l'en-tête d'une requête et renvoie son identifiant ; les paramètres suivent sur out
+        int request(byte opcode) throws IOException {
+            int requestId = ++nextRequestId;
+            out.writeInt(requestId);
+            out.writeByte(opcode);
+            return requestId;
+        }
+
+        // Envoie les requêtes en attente puis lit l'en-tête de la réponse attendue
+        byte awaitResponse(int requestId) throws IOException {
+            out.flush();
+            int responseId = in.readInt();
+            if (responseId != requestId) {
+                throw new IOException("Réponse inattendue de l'esclave " + getAddress()
+                        + " : requête " + responseId + " au lieu de " + requestId);
+            }
+            return in.readByte();
+        }
+
+        String getAddress() {
+            return SlavePool.this.getAddress();
+        }
+
+        private boolean isExpired() {
+            return socket.isClosed() || System.currentTimeMillis() - lastUsed > IDLE_TIMEOUT_MS;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // connexion déjà inutilisable
+            }
+        }
+    }
+}
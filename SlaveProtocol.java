@@ -0,0 +1,40 @@
+// Protocole binaire entre le serveur principal et les serveurs esclaves.
+//
+// Requête : [int identifiant][byte opcode][paramètres de l'opération]
+// Réponse : [int identifiant][byte statut][données éventuelles]
+//
+// Une connexion reste ouverte et transporte autant de requêtes que nécessaire :
+// le serveur principal peut en envoyer plusieurs à la suite sans attendre,
+// l'esclave les traite dans l'ordre et répond avec le même identifiant.
+final class SlaveProtocol {
+    // PUT    : nom (UTF), codec (byte), CRC32C (int), taille (long), nombre de répliques suivantes (int),
+    //          adresses "hôte:port" des répliques suivantes (UTF), octets
+    //                                                     -> statut, nombre (int), statut de chaque
+    //                                                        réplique suivante (byte)
+    static final byte OP_PUT = 1;
+    // GET    : nom (UTF)                                  -> statut, codec (byte), CRC32C (int),
+    //                                                        taille (long), octets
+    static final byte OP_GET = 2;
+    // DELETE : nom (UTF)                                  -> statut
+    static final byte OP_DELETE = 3;
+    // LIST   :                                            -> statut, nombre (int), noms (UTF)
+    static final byte OP_LIST = 4;
+    // STATS  :                                            -> statut, nombre (int), paires nom (UTF)
+    //                                                        et valeur (long) des métriques
+    static final byte OP_STATS = 5;
+    // STAT   : nom (UTF)                                  -> statut, codec (byte), CRC32C (int),
+    //                                                        taille (long), taille décodée (long)
+    static final byte OP_STAT = 6;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_ERROR = 2;
+
+    // Codage des octets d'une partie : l'esclave le conserve avec la partie et le renvoie
+    // tel quel, sans décoder les octets (sauf pour en donner la taille décodée, avec STAT)
+    static final byte CODEC_RAW = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    private SlaveProtocol() {
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.*;
+import java.util.zip.CRC32C;
+
+// État d'un envoi de fichier vers le serveur principal.
+//
+// Les morceaux déjà enregistrés sur les esclaves restent épinglés dans le catalogue tant
+// que l'envoi n'est ni terminé ni abandonné. Un envoi repris (action "rsend") est désigné
+// par son identifiant : si la connexion tombe, le client se reconnecte et le transfert
+// repart de received, la fin du dernier morceau enregistré, au lieu de zéro.
+class UploadSession {
+    final String id; // null pour un envoi simple, qui ne peut pas être repris
+    final String filename;
+    final long fileSize;
+    // CRC32C du fichier jusqu'à received
+    final CRC32C checksum = new CRC32C();
+    // Morceaux enregistrés, dans l'ordre du fichier
+    final List<MetadataCatalog.ChunkRef> chunks = new ArrayList<>();
+    // Octets découpés et confiés aux esclaves depuis le début du fichier
+    long received;
+    private boolean active = true;
+    private long lastActive = System.currentTimeMillis();
+
+    UploadSession(String id, String filename, long fileSize) {
+        this.id = id;
+        this.filename = filename;
+        this.fileSize = fileSize;
+    }
+
+    // Octets suivants du fichier, confiés aux esclaves dans un morceau
+    void append(byte[] buffer, int length) {
+        checksum.update(buffer, 0, length);
+        received += length;
+    }
+
+    // Les morceaux enregistrés couvrent-ils exactement les octets reçus ? Ce n'est plus le
+    // cas si l'envoi d'un morceau a échoué : l'envoi ne peut alors pas être repris.
+    boolean isConsistent() {
+        long covered = 0;
+        for (MetadataCatalog.ChunkRef chunk : chunks) {
+            covered += chunk.length;
+        }
+        return covered == received;
+    }
+
+    // Réserve l'envoi pour une connexion ; renvoie false s'il est déjà en cours ailleurs
+    synchronized boolean resume() {
+        if (active) {
+            return false;
+        }
+        active = true;
+        return true;
+    }
+
+    synchronized void suspend() {
+        active = false;
+        lastActive = System.currentTimeMillis();
+    }
+
+    // Envoi suspendu depuis plus de timeoutMillis
+    synchronized boolean isExpired(long timeoutMillis) {
+        return !active && System.currentTimeMillis() - lastActive > timeoutMillis;
+    }
+}
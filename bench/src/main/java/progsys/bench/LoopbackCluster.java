@@ -0,0 +1,152 @@
+package progsys.bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Serveur principal et esclaves lancés dans des processus séparés, sur la boucle locale.
+//
+// Chaque grappe a son répertoire temporaire, avec son config.txt, son catalogue et le
+// stockage des esclaves ; les serveurs sont ceux du classpath courant, lancés avec la même
+// JVM. Les options passées dans la propriété bench.serverJvmArgs (par exemple
+// "-Xlog:gc:file=gc-%p.log") sont ajoutées à leur ligne de commande, pour observer aussi le
+// ramasse-miettes des serveurs.
+final class LoopbackCluster implements Closeable {
+    private static final long START_TIMEOUT_MS = 20_000;
+
+    private final Path directory;
+    private final List<Process> processes = new ArrayList<>();
+    final int mainServerPort;
+
+    // extraConfig : lignes ajoutées à config.txt (CHUNK_SIZE_MB, REPLICATION_FACTOR...)
+    LoopbackCluster(int slaves, List<String> extraConfig) throws IOException {
+        directory = Files.createTempDirectory("progsys-bench");
+        int[] ports = freePorts(slaves + 1);
+        mainServerPort = ports[0];
+
+        List<String> config = new ArrayList<>();
+        for (int i = 1; i <= slaves; i++) {
+            config.add("SLAVE" + i + "_IP=127.0.0.1:" + ports[i]);
+        }
+        config.add("SLAVE_PORT=" + ports[1]);
+        config.add("MAIN_SERVER_IP=127.0.0.1");
+        config.add("MAIN_SERVER_PORT=" + mainServerPort);
+        config.add("SERVER_SLAVE_STORAGE_PATH=./store/slave_");
+        config.add("CATALOG_PATH=./catalog");
+        config.add("SCRUB_RATE_MB=0");
+        config.addAll(extraConfig);
+        Files.write(directory.resolve("config.txt"), config);
+
+        try {
+            for (int i = 1; i <= slaves; i++) {
+                start("ServerSlave", "slave_" + ports[i] + ".log", String.valueOf(ports[i]));
+                awaitPort(ports[i]);
+            }
+            start("MainServer", "master.log");
+            awaitPort(mainServerPort);
+        } catch (IOException e) {
+            stopProcesses(); // répertoire conservé pour ses journaux
+            throw e;
+        }
+    }
+
+    // Nouvelle connexion au serveur principal, comme celles du Client
+    Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", mainServerPort));
+        return socket;
+    }
+
+    private void start(String mainClass, String log, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        String jvmArgs = System.getProperty("bench.serverJvmArgs", "").trim();
+        if (!jvmArgs.isEmpty()) {
+            command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+        }
+        // Les serveurs tournent dans le répertoire de la grappe : classpath en chemins absolus
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        command.add("-cp");
+        command.add(classPath.toString());
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        processes.add(new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve(log).toFile())
+                .start());
+    }
+
+    private void awaitPort(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Le port " + port + " ne répond pas ; journaux dans " + directory, e);
+                }
+                for (Process process : processes) {
+                    if (!process.isAlive()) {
+                        throw new IOException("Un serveur s'est arrêté au démarrage ; journaux dans " + directory);
+                    }
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        int[] ports = new int[count];
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                ports[i] = socket.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        return ports;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopProcesses();
+        if (Boolean.getBoolean("bench.keepFiles")) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void stopProcesses() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
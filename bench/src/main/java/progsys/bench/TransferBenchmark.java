@@ -0,0 +1,178 @@
+package progsys.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bancs d'essai de bout en bout des transferts, sur une grappe lancée sur la boucle locale :
+// un serveur principal et quatre esclaves, dans leurs propres processus.
+//
+//   send     : découpage et envoi d'un fichier aux esclaves (réception et écriture incluses)
+//   get      : lecture des morceaux chez les esclaves et réassemblage vers le client
+//   list     : liste du catalogue
+//   delete   : suppression d'un petit fichier et de ses morceaux
+//   sendSmallFiles : envoi de fileCount petits fichiers, un par connexion ("send") ou en
+//                    un seul envoi groupé ("msend")
+//
+// Le nombre de clients simultanés se règle avec -t, la taille des fichiers avec -p fileSize
+// (jusqu'à plusieurs Go, les données étant générées au fil de l'envoi), et -prof gc mesure
+// les allocations côté client. Voir bench/README.md.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+
+    // Grappe des bancs de transfert, avec un fichier déjà envoyé pour "get"
+    @State(Scope.Benchmark)
+    public static class TransferCluster {
+        @Param({"1024", "1048576", "67108864"})
+        public long fileSize;
+        // "random" (incompressible) ou "text" (compressible)
+        @Param({"random", "text"})
+        public String data;
+        @Param({"2"})
+        public int replicationFactor;
+        // "k+m" : fragments codés à effacement au lieu de répliques entières
+        @Param({"none"})
+        public String erasureCoding;
+        // 0 : chaque lecture va jusqu'aux esclaves
+        @Param({"0"})
+        public int chunkCacheMb;
+
+        LoopbackCluster cluster;
+        final AtomicLong seeds = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            cluster = new LoopbackCluster(4, Arrays.asList(
+                    "CHUNK_SIZE_MB=4",
+                    "REPLICATION_FACTOR=" + replicationFactor,
+                    "ERASURE_CODING=" + erasureCoding,
+                    "CHUNK_CACHE_MB=" + chunkCacheMb));
+            Transfers.send(cluster, "bench-get", fileSize, data, seeds.incrementAndGet());
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            cluster.close();
+        }
+    }
+
+    // Nom réservé à un client : chaque envoi remplace le précédent, dont les morceaux sont
+    // alors supprimés, ce qui borne la place occupée sur les esclaves
+    @State(Scope.Thread)
+    public static class Uploader {
+        String name;
+
+        @Setup(Level.Trial)
+        public void name() {
+            name = "bench-send-" + UUID.randomUUID();
+        }
+    }
+
+    @Benchmark
+    public String send(TransferCluster state, Uploader uploader) throws IOException {
+        return Transfers.send(state.cluster, uploader.name, state.fileSize, state.data, state.seeds.incrementAndGet());
+    }
+
+    @Benchmark
+    public long get(TransferCluster state) throws IOException {
+        long received = Transfers.get(state.cluster, "bench-get");
+        if (received != state.fileSize) {
+            throw new IOException("bench-get : " + received + " octets reçus sur " + state.fileSize);
+        }
+        return received;
+    }
+
+    // Grappe du banc des petits fichiers
+    @State(Scope.Benchmark)
+    public static class SmallFilesCluster {
+        @Param({"100"})
+        public int fileCount;
+        @Param({"4096"})
+        public long smallFileSize;
+        @Param({"send", "msend"})
+        public String action;
+
+        LoopbackCluster cluster;
+        final AtomicLong seeds = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            cluster = new LoopbackCluster(4, Collections.singletonList("REPLICATION_FACTOR=2"));
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            cluster.close();
+        }
+    }
+
+    @Benchmark
+    public int sendSmallFiles(SmallFilesCluster state, Uploader uploader) throws IOException {
+        List<String> names = new ArrayList<>(state.fileCount);
+        for (int i = 0; i < state.fileCount; i++) {
+            names.add(uploader.name + "/" + i);
+        }
+        if (state.action.equals("msend")) {
+            Transfers.sendBatch(state.cluster, names, state.smallFileSize, "random", state.seeds.incrementAndGet());
+        } else {
+            for (String name : names) {
+                Transfers.send(state.cluster, name, state.smallFileSize, "random", state.seeds.incrementAndGet());
+            }
+        }
+        return names.size();
+    }
+
+    // Grappe des bancs de métadonnées, avec un catalogue de catalogSize petits fichiers
+    @State(Scope.Benchmark)
+    public static class CatalogCluster {
+        @Param({"1000"})
+        public int catalogSize;
+
+        LoopbackCluster cluster;
+        final AtomicLong seeds = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            cluster = new LoopbackCluster(4, Collections.singletonList("REPLICATION_FACTOR=2"));
+            for (int i = 0; i < catalogSize; i++) {
+                Transfers.send(cluster, "bench-file-" + i, 1024, "random", seeds.incrementAndGet());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            cluster.close();
+        }
+    }
+
+    // Petit fichier envoyé avant chaque suppression, hors de la mesure
+    @State(Scope.Thread)
+    public static class DeleteTarget {
+        String name;
+
+        @Setup(Level.Invocation)
+        public void upload(CatalogCluster state) throws IOException {
+            name = "bench-delete-" + UUID.randomUUID();
+            Transfers.send(state.cluster, name, 1024, "random", state.seeds.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<String> list(CatalogCluster state) throws IOException {
+        return Transfers.list(state.cluster);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String delete(CatalogCluster state, DeleteTarget target) throws IOException {
+        return Transfers.delete(state.cluster, target.name);
+    }
+}
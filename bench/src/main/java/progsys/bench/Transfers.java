@@ -0,0 +1,145 @@
+package progsys.bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+// Requêtes du Client vers le serveur principal, réduites à l'essentiel pour les bancs
+// d'essai : une connexion par requête, comme le Client.
+final class Transfers {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Mots dont sont faites les données "text", compressibles comme des journaux
+    private static final byte[][] WORDS;
+
+    static {
+        String[] words = {"GET", "POST", "/index.html", "/api/v1/files", "200", "404", "500",
+                "user", "session", "timeout", "served", "in", "ms", "error", "warning", "info"};
+        WORDS = new byte[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            WORDS[i] = (words[i] + " ").getBytes();
+        }
+    }
+
+    private Transfers() {
+    }
+
+    // Envoie size octets générés à partir de seed sous le nom name ; renvoie la réponse du serveur.
+    // Deux graines différentes donnent des contenus sans morceau commun.
+    static String send(LoopbackCluster cluster, String name, long size, String data, long seed) throws IOException {
+        try (Socket socket = cluster.connect();
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            out.writeUTF("send");
+            out.writeUTF(name);
+            out.writeLong(size);
+            SplittableRandom random = new SplittableRandom(seed);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = size;
+            while (remaining > 0) {
+                int length = (int) Math.min(buffer.length, remaining);
+                fill(buffer, length, data, random);
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+            out.flush();
+            return in.readUTF();
+        }
+    }
+
+    // Envoie en un seul envoi groupé ("msend") un fichier de size octets pour chaque nom ;
+    // renvoie la réponse du serveur
+    static String sendBatch(LoopbackCluster cluster, List<String> names, long size, String data, long seed) throws IOException {
+        try (Socket socket = cluster.connect();
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            out.writeUTF("msend");
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+                out.writeLong(size);
+            }
+            SplittableRandom random = new SplittableRandom(seed);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int i = 0; i < names.size(); i++) {
+                long remaining = size;
+                while (remaining > 0) {
+                    int length = (int) Math.min(buffer.length, remaining);
+                    fill(buffer, length, data, random);
+                    out.write(buffer, 0, length);
+                    remaining -= length;
+                }
+            }
+            out.flush();
+            return in.readUTF();
+        }
+    }
+
+    // Télécharge un fichier complet et renvoie le nombre d'octets reçus
+    static long get(LoopbackCluster cluster, String name) throws IOException {
+        try (Socket socket = cluster.connect();
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+            out.writeUTF("get");
+            out.writeUTF(name);
+            out.flush();
+            long size = in.readLong();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long received = 0;
+            while (received < size) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                if (count < 0) {
+                    throw new EOFException("Téléchargement de " + name + " interrompu à " + received + " octets");
+                }
+                received += count;
+            }
+            return received;
+        }
+    }
+
+    static List<String> list(LoopbackCluster cluster) throws IOException {
+        try (Socket socket = cluster.connect();
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeUTF("list");
+            out.flush();
+            int count = in.readInt();
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+            return names;
+        }
+    }
+
+    static String delete(LoopbackCluster cluster, String name) throws IOException {
+        try (Socket socket = cluster.connect();
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            out.writeUTF("delete");
+            out.writeUTF(name);
+            out.flush();
+            return in.readUTF();
+        }
+    }
+
+    // "random" : octets aléatoires, incompressibles ; "text" : mots séparés par des espaces
+    private static void fill(byte[] buffer, int length, String data, SplittableRandom random) {
+        if (data.equals("text")) {
+            int position = 0;
+            while (position < length) {
+                byte[] word = WORDS[random.nextInt(WORDS.length)];
+                int count = Math.min(word.length, length - position);
+                System.arraycopy(word, 0, buffer, position, count);
+                position += count;
+            }
+            return;
+        }
+        for (int i = 0; i < length; i += 8) {
+            long value = random.nextLong();
+            for (int j = i; j < Math.min(i + 8, length); j++) {
+                buffer[j] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package progsys.bench;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+// Téléchargements simultanés plus nombreux que les tampons de morceaux du serveur principal
+// ne peuvent en servir à pleine profondeur de pipeline : avec MAX_CHUNK_BUFFERS=4, chaque
+// téléchargement voudrait deux tampons d'avance, et huit en même temps en réclament seize.
+class ConcurrentGetTest {
+    private static final int MAX_CHUNK_BUFFERS = 4;
+    private static final int GETS = 8;
+    private static final long FILE_SIZE = 16L * 1024 * 1024;
+
+    private static LoopbackCluster cluster;
+
+    @BeforeAll
+    static void start() throws IOException {
+        cluster = new LoopbackCluster(4, Arrays.asList(
+                "CHUNK_SIZE_MB=1",
+                "MAX_CHUNK_BUFFERS=" + MAX_CHUNK_BUFFERS,
+                "REPLICATION_FACTOR=2",
+                "CHUNK_CACHE_MB=0"));
+        Transfers.send(cluster, "concurrent-get", FILE_SIZE, "random", 1);
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    @Test
+    void concurrentGetsAllComplete() {
+        assertTimeoutPreemptively(Duration.ofSeconds(120), () -> {
+            ExecutorService clients = Executors.newFixedThreadPool(GETS);
+            try {
+                List<Future<Long>> gets = new ArrayList<>();
+                for (int i = 0; i < GETS; i++) {
+                    gets.add(clients.submit(() -> Transfers.get(cluster, "concurrent-get")));
+                }
+                for (Future<Long> get : gets) {
+                    assertEquals(FILE_SIZE, (long) get.get());
+                }
+            } finally {
+                clients.shutdownNow();
+            }
+            // Le serveur principal sert encore les téléchargements suivants
+            assertEquals(FILE_SIZE, Transfers.get(cluster, "concurrent-get"));
+        });
+    }
+}